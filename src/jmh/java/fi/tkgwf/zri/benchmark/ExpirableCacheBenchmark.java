@@ -0,0 +1,68 @@
+package fi.tkgwf.zri.benchmark;
+
+import fi.tkgwf.zri.utils.ExpirableCache;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item cache operations at different cache sizes. The short lived variant
+ * keeps the expiry wheel busy, which is where ExpirableMap used to do its full
+ * scans.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+@Threads(4)
+public class ExpirableCacheBenchmark {
+
+    private static final long TTL_MS = 10 * 60 * 1000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private ExpirableCache<Long, Object> cache;
+    private final Object value = new Object();
+
+    @Setup
+    public void setup() {
+        cache = new ExpirableCache<>(size, 0.1);
+        for (long i = 0; i < size; i++) {
+            cache.put(i, i % 10 == 0 ? null : value, TTL_MS);
+        }
+    }
+
+    @Benchmark
+    public Object get() {
+        return cache.get(ThreadLocalRandom.current().nextLong(size));
+    }
+
+    @Benchmark
+    public void put() {
+        cache.put(ThreadLocalRandom.current().nextLong(size), value, TTL_MS);
+    }
+
+    @Benchmark
+    public void putEvicting() {
+        cache.put(ThreadLocalRandom.current().nextLong(size, 2L * size), value, TTL_MS);
+    }
+
+    @Benchmark
+    public void putShortLived() {
+        cache.put(ThreadLocalRandom.current().nextLong(size), value, 1);
+    }
+}
@@ -0,0 +1,88 @@
+package fi.tkgwf.zri.benchmark;
+
+import fi.tkgwf.zri.parser.HistoryEntry;
+import fi.tkgwf.zri.parser.HistoryEntryParser;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of a realistic entry mix: mostly floats and unsigned integers, some
+ * string/text/log values that are discarded and an occasional malformed entry.
+ * The split based variant is the parsing the enrich stage used to do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryEntryParserBenchmark {
+
+    private static final int ENTRIES = 10000;
+
+    private final HistoryEntry parsed = new HistoryEntry();
+    private String[] entries;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        entries = new String[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            int r = random.nextInt(100);
+            char type = r < 60 ? 'f' : r < 88 ? 'i' : r < 93 ? 's' : r < 97 ? 't' : 'l';
+            entries[i] = r == 99 ? "1600000000 garbage" : TestData.entry(random.nextInt(100000), i, type);
+        }
+    }
+
+    @Benchmark
+    public void parser(Blackhole bh) {
+        HistoryEntryParser.Result result = HistoryEntryParser.parse(nextEntry(), parsed);
+        bh.consume(result);
+        bh.consume(parsed.value);
+    }
+
+    @Benchmark
+    public void split(Blackhole bh) {
+        String[] split = nextEntry().split(" ", 5);
+        if (split.length != 5) {
+            return;
+        }
+        try {
+            Long timeSeconds = Long.valueOf(split[0]);
+            Long timeNanos = Long.valueOf(split[1]);
+            String itemId = split[2];
+            switch (split[3]) {
+                case "i":
+                case "f":
+                    bh.consume(Double.valueOf(split[4]));
+                    bh.consume(itemId);
+                    bh.consume(timeSeconds * 1_000_000_000 + timeNanos);
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException ex) {
+            bh.consume(ex);
+        }
+    }
+
+    private String nextEntry() {
+        String entry = entries[next++];
+        if (next == ENTRIES) {
+            next = 0;
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,84 @@
+package fi.tkgwf.zri.benchmark;
+
+import fi.tkgwf.zri.bean.zabbix.Host;
+import fi.tkgwf.zri.bean.zabbix.Item;
+import fi.tkgwf.zri.utils.LineProtocol;
+import java.util.concurrent.TimeUnit;
+import org.influxdb.dto.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares encoding a value through the influxdb-java Point builder, as
+ * InfluxDBConnection used to do, against the cached series prefix template.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineProtocolBenchmark {
+
+    @Param({"1000", "100000"})
+    public int items;
+
+    private Host[] hosts;
+    private Item[] itemArray;
+    private final StringBuilder buffer = new StringBuilder(256);
+    private int next;
+    private long timestamp = 1_600_000_000_000_000_000L;
+
+    @Setup
+    public void setup() {
+        itemArray = new Item[items];
+        hosts = new Host[items];
+        for (int i = 0; i < items; i++) {
+            itemArray[i] = TestData.item(i);
+            hosts[i] = TestData.host(i / TestData.ITEMS_PER_HOST);
+        }
+    }
+
+    @Benchmark
+    public void point(Blackhole bh) {
+        int i = nextIndex();
+        Item item = itemArray[i];
+        Host host = hosts[i];
+        Point point = Point.measurement(item.key_.split("\\[", 2)[0])
+                .time(timestamp++, TimeUnit.NANOSECONDS)
+                .tag("item", item.name)
+                .tag("host", host.host)
+                .tag("itemid", String.valueOf(item.itemid))
+                .tag("hostid", host.hostid)
+                .tag("key", item.key_)
+                .addField("value", (Number) (i * 0.5))
+                .build();
+        bh.consume(point.lineProtocol());
+    }
+
+    @Benchmark
+    public void template(Blackhole bh) {
+        int i = nextIndex();
+        buffer.setLength(0);
+        LineProtocol.append(buffer, hosts[i], itemArray[i], timestamp++, i * 0.5);
+        bh.consume(buffer.length());
+    }
+
+    private int nextIndex() {
+        int i = next++;
+        if (next == items) {
+            next = 0;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,126 @@
+package fi.tkgwf.zri.benchmark;
+
+import fi.tkgwf.zri.bean.zabbix.Item;
+import fi.tkgwf.zri.utils.ExpirableCache;
+import fi.tkgwf.zri.utils.LongExpirableCache;
+import fi.tkgwf.zri.utils.StringPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item cache lookups and heap footprint with the previous layout, string item
+ * ids and strings decoded separately for every item in a generic cache, and
+ * with long item ids, shared strings and the primitive keyed cache. The
+ * retained heap per million items is printed when the cache has been filled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+@Threads(4)
+public class MetadataStoreBenchmark {
+
+    private static final long TTL_MS = 10 * 60 * 1000;
+
+    @Param({"1000000"})
+    public int size;
+
+    @Param({"legacy", "compact"})
+    public String layout;
+
+    private ExpirableCache<Long, LegacyItem> legacyCache;
+    private LongExpirableCache<Item> compactCache;
+
+    @Setup
+    public void setup() {
+        long before = usedHeap();
+        if ("legacy".equals(layout)) {
+            legacyCache = new ExpirableCache<>(size, 0.1);
+            for (int i = 0; i < size; i++) {
+                LegacyItem item = LegacyItem.of(TestData.item(i));
+                legacyCache.put(10000L + i, item, TTL_MS);
+            }
+        } else {
+            compactCache = new LongExpirableCache<>(size, 0.1);
+            StringPool strings = new StringPool(size);
+            for (int i = 0; i < size; i++) {
+                Item item = copy(TestData.item(i));
+                item.type = strings.intern(item.type);
+                item.hostid = strings.intern(item.hostid);
+                item.name = strings.intern(item.name);
+                item.key_ = strings.intern(item.key_);
+                compactCache.put(item.itemid, item, TTL_MS);
+            }
+        }
+        long bytes = usedHeap() - before;
+        System.out.println();
+        System.out.println(layout + ": " + bytes / size + " bytes per item, " + bytes * 1000000 / size / (1 << 20) + " MB per million items");
+    }
+
+    @Benchmark
+    public Object get() {
+        long itemId = 10000 + ThreadLocalRandom.current().nextInt(size);
+        return legacyCache != null ? legacyCache.get(itemId) : compactCache.get(itemId, null, key -> {
+        });
+    }
+
+    /**
+     * @return a copy with its own strings, like an item decoded from JSON
+     */
+    private static Item copy(Item source) {
+        Item item = new Item();
+        item.itemid = source.itemid;
+        item.type = new String(source.type);
+        item.hostid = new String(source.hostid);
+        item.name = new String(source.name);
+        item.key_ = new String(source.key_);
+        return item;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * The item bean as it was before item ids became longs
+     */
+    private static class LegacyItem {
+
+        String itemid;
+        String type;
+        String hostid;
+        String name;
+        String key_;
+        Object hosts;
+        volatile Object seriesPrefix;
+
+        static LegacyItem of(Item source) {
+            Item copy = copy(source);
+            LegacyItem item = new LegacyItem();
+            item.itemid = String.valueOf(copy.itemid);
+            item.type = copy.type;
+            item.hostid = copy.hostid;
+            item.name = copy.name;
+            item.key_ = copy.key_;
+            return item;
+        }
+    }
+}
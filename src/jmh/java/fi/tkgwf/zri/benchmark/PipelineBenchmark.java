@@ -0,0 +1,153 @@
+package fi.tkgwf.zri.benchmark;
+
+import fi.tkgwf.zri.bean.zabbix.Host;
+import fi.tkgwf.zri.bean.zabbix.Item;
+import fi.tkgwf.zri.connection.InfluxDBConnection;
+import fi.tkgwf.zri.connection.InfluxDBRouter;
+import fi.tkgwf.zri.connection.ZabbixConnection;
+import fi.tkgwf.zri.pipeline.BatchAck;
+import fi.tkgwf.zri.pipeline.HistorySource;
+import fi.tkgwf.zri.pipeline.Pipeline;
+import fi.tkgwf.zri.pipeline.SourceBatch;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end throughput of the pipeline with an in-memory source, zabbix
+ * answering from a prebuilt map and a writer that encodes but discards the
+ * batches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+    private static final int ITEMS = 100000;
+    private static final int ENTRIES = 50000;
+
+    private final StubSource source = new StubSource();
+    private StubInflux influx;
+    private List<String> entries;
+    private Thread pipelineThread;
+
+    @Setup
+    public void setup() {
+        entries = new ArrayList<>(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+            entries.add(TestData.entry(i % ITEMS, i, i % 3 == 0 ? 'i' : 'f'));
+        }
+        influx = new StubInflux();
+        Pipeline pipeline = new Pipeline(source, new StubZabbix(), new InfluxDBRouter(influx));
+        pipelineThread = new Thread(pipeline::run, "pipeline");
+        pipelineThread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        pipelineThread.interrupt();
+        pipelineThread.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public void endToEnd() {
+        long target = influx.appended.sum() + ENTRIES;
+        source.queue.addAll(entries);
+        while (influx.appended.sum() < target) {
+            LockSupport.parkNanos(10_000);
+        }
+    }
+
+    private static class StubSource implements HistorySource {
+
+        final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>();
+
+        @Override
+        public SourceBatch poll(int maxEntries) throws InterruptedException {
+            List<String> batch = new ArrayList<>(maxEntries);
+            String first = queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first != null) {
+                batch.add(first);
+                queue.drainTo(batch, maxEntries - 1);
+            }
+            return new SourceBatch(batch, BatchAck.NONE);
+        }
+
+        @Override
+        public void requeue(List<String> entries) {
+            queue.addAll(entries);
+        }
+
+        @Override
+        public String getStats() {
+            return "";
+        }
+    }
+
+    private static class StubZabbix extends ZabbixConnection {
+
+        private final Item[] items = new Item[ITEMS];
+        private final Map<String, Host> hosts = new HashMap<>();
+
+        StubZabbix() {
+            for (int i = 0; i < ITEMS; i++) {
+                items[i] = TestData.item(i);
+                hosts.computeIfAbsent(items[i].hostid, id -> TestData.host(Integer.parseInt(id) - 10000));
+            }
+        }
+
+        @Override
+        public CompletableFuture<Item> getItem(long itemId) {
+            return CompletableFuture.completedFuture(items[(int) (itemId - 10000)]);
+        }
+
+        @Override
+        public CompletableFuture<Host> getHost(String hostId) {
+            return CompletableFuture.completedFuture(hosts.get(hostId));
+        }
+    }
+
+    private static class StubInflux extends InfluxDBConnection {
+
+        final LongAdder appended = new LongAdder();
+
+        @Override
+        public boolean append(StringBuilder buffer, Host host, Item item, long timestamp, double value) {
+            boolean result = super.append(buffer, host, item, timestamp, value);
+            appended.increment();
+            return result;
+        }
+
+        @Override
+        public CompletableFuture<Void> writeAsync(Target target, String lines, boolean retryUntilWritten) {
+            return CompletableFuture.completedFuture(null); // discard
+        }
+
+        @Override
+        public CompletableFuture<Void> tryWriteAsync(Target target, String lines, boolean retryUntilWritten) {
+            return CompletableFuture.completedFuture(null); // discard
+        }
+    }
+}
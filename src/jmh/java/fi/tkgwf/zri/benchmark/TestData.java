@@ -0,0 +1,71 @@
+package fi.tkgwf.zri.benchmark;
+
+import fi.tkgwf.zri.bean.zabbix.Host;
+import fi.tkgwf.zri.bean.zabbix.Item;
+
+/**
+ * Synthetic zabbix metadata resembling a typical linux host template
+ */
+final class TestData {
+
+    static final int ITEMS_PER_HOST = 75;
+
+    private static final String[][] KEYS = {
+        {"system.cpu.util[,idle]", "CPU idle time"},
+        {"system.cpu.load[percpu,avg1]", "Processor load (1 min average per core)"},
+        {"vm.memory.size[available]", "Available memory"},
+        {"net.if.in[eth0]", "Incoming network traffic on eth0"},
+        {"net.if.out[eth0]", "Outgoing network traffic on eth0"},
+        {"vfs.fs.size[/,pused]", "Used disk space on / (percentage)"},
+        {"vfs.fs.size[/var/lib/docker,free]", "Free disk space on /var/lib/docker"},
+        {"proc.num[]", "Number of processes"},
+        {"agent.ping", "Agent ping"}
+    };
+
+    private TestData() {
+    }
+
+    static Item item(int itemIndex) {
+        String[] key = KEYS[itemIndex % KEYS.length];
+        Item item = new Item();
+        item.itemid = 10000 + itemIndex;
+        item.hostid = String.valueOf(10000 + itemIndex / ITEMS_PER_HOST);
+        item.type = "0";
+        item.key_ = key[0];
+        item.name = key[1];
+        return item;
+    }
+
+    /**
+     * Create a history entry in the format pushed by zabbix_redis_exporter
+     *
+     * @param itemIndex
+     * @param seq sequence number used to vary the timestamp and value
+     * @param type zabbix value type character
+     * @return the entry
+     */
+    static String entry(int itemIndex, int seq, char type) {
+        long seconds = 1_600_000_000L + seq;
+        int nanos = (seq * 7919) % 1_000_000_000;
+        String value;
+        switch (type) {
+            case 'f':
+                value = String.valueOf((seq % 10000) / 7.0);
+                break;
+            case 'i':
+                value = String.valueOf(seq % 100000);
+                break;
+            default:
+                value = "Linux server-" + itemIndex + " 4.19.0-16-amd64 #1 SMP Debian";
+                break;
+        }
+        return seconds + " " + nanos + " " + (10000 + itemIndex) + " " + type + " " + value;
+    }
+
+    static Host host(int hostIndex) {
+        Host host = new Host();
+        host.hostid = String.valueOf(10000 + hostIndex);
+        host.host = "server-" + hostIndex + ".example.com";
+        return host;
+    }
+}
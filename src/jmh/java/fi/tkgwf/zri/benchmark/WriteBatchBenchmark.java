@@ -0,0 +1,113 @@
+package fi.tkgwf.zri.benchmark;
+
+import fi.tkgwf.zri.bean.zabbix.Host;
+import fi.tkgwf.zri.bean.zabbix.Item;
+import fi.tkgwf.zri.pipeline.EnrichedValue;
+import fi.tkgwf.zri.utils.LineProtocol;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost and gzipped size of a write batch encoded in arrival order, with the
+ * series interleaved, or sorted by series and time first as WriterStage does
+ * unless influxdb.batch.sort is false. The payload sizes are printed when the
+ * benchmark is set up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBatchBenchmark {
+
+    private static final int BATCH = 5000;
+
+    @Param({"false", "true"})
+    public boolean sort;
+
+    @Param({"500", "5000"})
+    public int series;
+
+    private EnrichedValue[] arrivals;
+    private final StringBuilder buffer = new StringBuilder(BATCH * 128);
+    private final CountingStream out = new CountingStream();
+
+    @Setup
+    public void setup() throws IOException {
+        Item[] items = new Item[series];
+        Host[] hosts = new Host[series];
+        for (int i = 0; i < series; i++) {
+            items[i] = TestData.item(i);
+            hosts[i] = TestData.host(i / TestData.ITEMS_PER_HOST);
+        }
+        // every item reports once a minute, the values arrive in the order they were collected
+        Random random = new Random(1);
+        long start = 1_600_000_000_000_000_000L;
+        long[] offsets = random.longs(series, 0, 60_000_000_000L).toArray();
+        arrivals = new EnrichedValue[BATCH];
+        for (int n = 0; n < BATCH; n++) {
+            int i = n % series;
+            long timestamp = start + (n / series) * 60_000_000_000L + offsets[i];
+            arrivals[n] = new EnrichedValue(items[i].itemid, hosts[i], items[i], timestamp, (n * 7919) % 1000 / 10.0, null);
+        }
+        Arrays.sort(arrivals, (a, b) -> Long.compare(a.timestamp, b.timestamp));
+        encode();
+        long raw = buffer.toString().getBytes(StandardCharsets.UTF_8).length;
+        System.out.println();
+        System.out.println((sort ? "sorted" : "arrival order") + ", " + series + " series: " + raw / BATCH + " bytes per point, "
+                + String.format("%.1f", (double) out.bytes / BATCH) + " gzipped");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long encode() throws IOException {
+        List<EnrichedValue> values = new ArrayList<>(Arrays.asList(arrivals));
+        if (sort) {
+            values.sort(EnrichedValue.SERIES_ORDER);
+        }
+        buffer.setLength(0);
+        for (EnrichedValue v : values) {
+            LineProtocol.append(buffer, v.host, v.item, v.timestamp, v.value);
+        }
+        out.bytes = 0;
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192)) {
+            gzip.write(buffer.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return out.bytes;
+    }
+
+    private static class CountingStream extends OutputStream {
+
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+}
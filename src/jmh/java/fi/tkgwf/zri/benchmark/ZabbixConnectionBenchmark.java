@@ -0,0 +1,141 @@
+package fi.tkgwf.zri.benchmark;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.connection.ZabbixConnection;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Item lookups that all miss the cache, against a local stub of the zabbix
+ * API. The stub can expire the session every so many item.get calls to
+ * measure the cost of logging in again while lookups are in flight.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ZabbixConnectionBenchmark {
+
+    private static final int LOOKUPS = 1000;
+    private static final Gson GSON = new Gson();
+
+    @Param({"0", "100"})
+    public int expireSessionEvery;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private ZabbixConnection zabbix;
+    private final AtomicLong nextItemId = new AtomicLong();
+    private final AtomicInteger session = new AtomicInteger();
+    private final AtomicInteger itemCalls = new AtomicInteger();
+
+    @Setup
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/api_jsonrpc.php", this::handle);
+        executor = Executors.newFixedThreadPool(8);
+        server.setExecutor(executor);
+        server.start();
+        Config.set("zabbix.url", "http://127.0.0.1:" + server.getAddress().getPort());
+        Config.set("zabbix.lookup.window", "5");
+        zabbix = new ZabbixConnection();
+    }
+
+    @TearDown
+    public void tearDown() {
+        zabbix.close();
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void getItem() {
+        long first = nextItemId.getAndAdd(LOOKUPS);
+        CompletableFuture<?>[] lookups = new CompletableFuture<?>[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            lookups[i] = zabbix.getItem(first + i);
+        }
+        CompletableFuture.allOf(lookups).join();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        JsonObject request = GSON.fromJson(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8), JsonObject.class);
+        String method = request.get("method").getAsString();
+        JsonObject response = new JsonObject();
+        response.addProperty("jsonrpc", "2.0");
+        response.add("id", request.get("id"));
+        if ("user.login".equals(method)) {
+            response.addProperty("result", "token" + session.get());
+        } else if (!("token" + session.get()).equals(request.get("auth").getAsString())) {
+            JsonObject error = new JsonObject();
+            error.addProperty("code", -32602);
+            error.addProperty("message", "Invalid params.");
+            error.addProperty("data", "Session terminated, re-login, please.");
+            response.add("error", error);
+        } else if ("item.get".equals(method)) {
+            if (expireSessionEvery > 0 && itemCalls.incrementAndGet() % expireSessionEvery == 0) {
+                session.incrementAndGet();
+            }
+            JsonArray result = new JsonArray();
+            for (JsonElement id : request.getAsJsonObject("params").getAsJsonArray("itemids")) {
+                long itemId = id.getAsLong();
+                JsonObject host = new JsonObject();
+                host.addProperty("hostid", String.valueOf(itemId % 1000));
+                host.addProperty("host", "host" + itemId % 1000);
+                JsonArray hosts = new JsonArray();
+                hosts.add(host);
+                JsonObject item = new JsonObject();
+                item.addProperty("itemid", String.valueOf(itemId));
+                item.addProperty("type", "0");
+                item.addProperty("hostid", String.valueOf(itemId % 1000));
+                item.addProperty("name", "Item " + itemId);
+                item.addProperty("key_", "system.cpu.util[,idle," + itemId + "]");
+                item.add("hosts", hosts);
+                result.add(item);
+            }
+            response.add("result", result);
+        } else {
+            response.add("result", new JsonArray());
+        }
+        byte[] body = GSON.toJson(response).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
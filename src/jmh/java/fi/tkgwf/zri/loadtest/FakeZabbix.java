@@ -0,0 +1,139 @@
+package fi.tkgwf.zri.loadtest;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local stand-in for the zabbix api_jsonrpc.php endpoint. Items 1 to
+ * maxItems exist, each host having itemsPerHost of them, and every response is
+ * delayed by the current latency.
+ */
+class FakeZabbix {
+
+    private static final Gson GSON = new Gson();
+    private static final String[][] KEYS = {
+        {"system.cpu.util[,idle]", "CPU idle time"},
+        {"system.cpu.load[percpu,avg1]", "Processor load (1 min average per core)"},
+        {"vm.memory.size[available]", "Available memory"},
+        {"net.if.in[eth0]", "Incoming network traffic on eth0"},
+        {"net.if.out[eth0]", "Outgoing network traffic on eth0"},
+        {"vfs.fs.size[/,pused]", "Used disk space on / (percentage)"},
+        {"vfs.fs.size[/var/lib/docker,free]", "Free disk space on /var/lib/docker"},
+        {"proc.num[]", "Number of processes"},
+        {"agent.ping", "Agent ping"}
+    };
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long maxItems;
+    private final int itemsPerHost;
+    final LongAdder calls = new LongAdder();
+    volatile long latencyMs;
+
+    FakeZabbix(long maxItems, int itemsPerHost) throws IOException {
+        this.maxItems = maxItems;
+        this.itemsPerHost = itemsPerHost;
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(32, r -> {
+            Thread t = new Thread(r, "loadtest-zabbix-" + threads.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/api_jsonrpc.php", this::handle);
+        server.setExecutor(executor);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        calls.increment();
+        JsonObject request = GSON.fromJson(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8), JsonObject.class);
+        String method = request.get("method").getAsString();
+        JsonObject params = request.getAsJsonObject("params");
+        JsonObject response = new JsonObject();
+        response.addProperty("jsonrpc", "2.0");
+        response.add("id", request.get("id"));
+        if ("user.login".equals(method)) {
+            response.addProperty("result", "loadtest");
+        } else if ("item.get".equals(method) && params.has("itemids")) {
+            JsonArray result = new JsonArray();
+            for (JsonElement id : params.getAsJsonArray("itemids")) {
+                long itemId = id.getAsLong();
+                if (itemId >= 1 && itemId <= maxItems) {
+                    result.add(item(itemId));
+                }
+            }
+            response.add("result", result);
+        } else if ("host.get".equals(method) && params.has("hostids")) {
+            JsonArray result = new JsonArray();
+            for (JsonElement id : params.getAsJsonArray("hostids")) {
+                result.add(host(id.getAsLong()));
+            }
+            response.add("result", result);
+        } else {
+            response.add("result", new JsonArray()); // full syncs are not simulated
+        }
+        long latency = latencyMs;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        byte[] body = GSON.toJson(response).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private JsonObject item(long itemId) {
+        String[] key = KEYS[(int) (itemId % KEYS.length)];
+        long hostId = (itemId - 1) / itemsPerHost + 1;
+        JsonArray hosts = new JsonArray();
+        hosts.add(host(hostId));
+        JsonObject item = new JsonObject();
+        item.addProperty("itemid", String.valueOf(itemId));
+        item.addProperty("type", "0");
+        item.addProperty("hostid", String.valueOf(hostId));
+        item.addProperty("name", key[1]);
+        item.addProperty("key_", key[0].replace("]", "," + (itemId - 1) % itemsPerHost / KEYS.length + "]"));
+        item.add("hosts", hosts);
+        return item;
+    }
+
+    private static JsonObject host(long hostId) {
+        JsonObject host = new JsonObject();
+        host.addProperty("hostid", String.valueOf(hostId));
+        host.addProperty("host", "server-" + hostId + ".example.com");
+        return host;
+    }
+}
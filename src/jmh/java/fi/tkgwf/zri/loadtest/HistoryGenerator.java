@@ -0,0 +1,69 @@
+package fi.tkgwf.zri.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Produces synthetic history entries stamped with the current time, at a given
+ * rate or as fast as the consumer takes them, cycling over a range of items.
+ */
+class HistoryGenerator implements Runnable {
+
+    private static final int BATCH = 1000;
+
+    private final Consumer<List<String>> consumer;
+    final LongAdder generated = new LongAdder();
+    volatile long rate; // entries per second, 0 for no limit
+    volatile long firstItem = 1;
+    volatile long items = 1;
+
+    /**
+     * @param consumer receives batches of entries, may block to slow the
+     * generator down
+     */
+    HistoryGenerator(Consumer<List<String>> consumer) {
+        this.consumer = consumer;
+    }
+
+    void start() {
+        Thread t = new Thread(this, "loadtest-generator");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        long seq = 0;
+        long nextAllowed = System.nanoTime();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long r = rate;
+                if (r > 0) {
+                    long wait = nextAllowed - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    nextAllowed = Math.max(nextAllowed, System.nanoTime() - 1_000_000_000L) + BATCH * 1_000_000_000L / r;
+                }
+                long now = System.currentTimeMillis();
+                String time = now / 1000 + " " + now % 1000 * 1_000_000 + " ";
+                long first = firstItem;
+                long count = items;
+                List<String> batch = new ArrayList<>(BATCH);
+                for (int i = 0; i < BATCH; i++, seq++) {
+                    long itemId = first + seq % count;
+                    batch.add(seq % 3 == 0
+                            ? time + itemId + " i " + seq % 100000
+                            : time + itemId + " f " + (seq % 10000) / 7.0);
+                }
+                consumer.accept(batch);
+                generated.add(BATCH);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package fi.tkgwf.zri.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local stand-in for the InfluxDB write endpoints. Counts the points and
+ * request body bytes written and samples the end-to-end lag of the points,
+ * the time from the timestamp of the point to its arrival here.
+ */
+class InfluxSink {
+
+    private static final int LAG_SAMPLES = 1 << 20;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    final LongAdder points = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    volatile long latencyMs;
+    private final long[] lags = new long[LAG_SAMPLES]; // guarded by this
+    private long lagCount; // guarded by this
+
+    InfluxSink() throws IOException {
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(16, r -> {
+            Thread t = new Thread(r, "loadtest-influx-" + threads.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/write", this::handle);
+        server.createContext("/api/v2/write", this::handle);
+        server.setExecutor(executor);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Forget the lags sampled so far
+     */
+    synchronized void resetLags() {
+        lagCount = 0;
+    }
+
+    /**
+     * @param quantiles
+     * @return the lag at each quantile in milliseconds, of the points written
+     * since the last reset
+     */
+    synchronized double[] lagQuantiles(double... quantiles) {
+        long[] sorted = Arrays.copyOf(lags, (int) Math.min(lagCount, LAG_SAMPLES));
+        Arrays.sort(sorted);
+        double[] result = new double[quantiles.length];
+        for (int i = 0; i < quantiles.length; i++) {
+            result[i] = sorted.length == 0 ? Double.NaN : sorted[(int) Math.min(sorted.length - 1, quantiles[i] * sorted.length)] / 1e6;
+        }
+        return result;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        InputStream in = new FilterInputStream(exchange.getRequestBody()) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytes.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytes.add(n);
+                }
+                return n;
+            }
+        };
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        long now = System.currentTimeMillis() * 1_000_000L;
+        int count = 0;
+        long[] batch = new long[1024];
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (count == batch.length) {
+                    batch = Arrays.copyOf(batch, count * 2);
+                }
+                batch[count++] = now - Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        points.add(count);
+        record(batch, count);
+        long latency = latencyMs;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+    }
+
+    /**
+     * Reservoir sampling, so that the quantiles cover the whole phase
+     */
+    private synchronized void record(long[] batch, int count) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < count; i++) {
+            long n = lagCount++;
+            if (n < LAG_SAMPLES) {
+                lags[(int) n] = batch[i];
+            } else {
+                long slot = random.nextLong(n + 1);
+                if (slot < LAG_SAMPLES) {
+                    lags[(int) slot] = batch[i];
+                }
+            }
+        }
+    }
+}
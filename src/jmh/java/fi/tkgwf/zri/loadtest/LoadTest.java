@@ -0,0 +1,168 @@
+package fi.tkgwf.zri.loadtest;
+
+import com.sun.management.ThreadMXBean;
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.connection.InfluxDBRouter;
+import fi.tkgwf.zri.connection.RedisConnection;
+import fi.tkgwf.zri.connection.ZabbixConnection;
+import fi.tkgwf.zri.pipeline.HistorySource;
+import fi.tkgwf.zri.pipeline.Pipeline;
+import fi.tkgwf.zri.pipeline.RedisListSource;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the complete pipeline against local stand-ins for zabbix, redis and
+ * InfluxDB, and reports the sustained write throughput, the end-to-end lag,
+ * the request bytes per point written and the allocation rate of each phase
+ * of a scenario.
+ *
+ * A scenario is a properties file, see src/jmh/scenarios. Keys starting with
+ * config. override the exporter config. The history comes from an in-memory
+ * queue, or with source=redis from the zabbix_history list of the redis server
+ * in redis.host. The phases phase.&lt;n&gt;.* run in order, each setting
+ * inherits the value of the previous phase unless given:
+ * <ul>
+ * <li>duration: length of the phase in seconds</li>
+ * <li>rate: entries generated per second, 0 for as fast as they are taken</li>
+ * <li>items, item.offset: the generated entries cycle over this many items
+ * starting after the offset, fresh items are cache misses</li>
+ * <li>zabbix.latency, influxdb.latency: response delay of the stand-ins in
+ * milliseconds</li>
+ * </ul>
+ */
+public class LoadTest {
+
+    private static final String REDIS_QUEUE = "zabbix_history";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: LoadTest <scenario.properties>");
+            System.exit(2);
+        }
+        Properties scenario = new Properties();
+        try (InputStream in = new FileInputStream(args[0])) {
+            scenario.load(in);
+        }
+        for (String key : scenario.stringPropertyNames()) {
+            if (key.startsWith("config.")) {
+                Config.set(key.substring("config.".length()), scenario.getProperty(key));
+            }
+        }
+
+        FakeZabbix zabbix = new FakeZabbix(Long.parseLong(scenario.getProperty("zabbix.items", "10000000")),
+                Integer.parseInt(scenario.getProperty("items.per.host", "75")));
+        InfluxSink influx = new InfluxSink();
+        zabbix.start();
+        influx.start();
+        Config.set("zabbix.url", zabbix.getUrl());
+        Config.set("influxdb.url", influx.getUrl());
+        Config.set("influxdb.api", "v1");
+        Config.set("influxdb.backends", null);
+
+        HistorySource source;
+        HistoryGenerator generator;
+        MemorySource memory = null;
+        RedisConnection redis = null;
+        if ("redis".equals(scenario.getProperty("source", "memory"))) {
+            RedisConnection connection = new RedisConnection();
+            long maxBacklog = Long.parseLong(scenario.getProperty("backlog.max", "1000000"));
+            generator = new HistoryGenerator(entries -> {
+                while (connection.length(REDIS_QUEUE) > maxBacklog) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                connection.pushBack(REDIS_QUEUE, entries);
+            });
+            source = new RedisListSource(connection, REDIS_QUEUE);
+            redis = connection;
+        } else {
+            memory = new MemorySource(Integer.parseInt(scenario.getProperty("backlog.max", "1000000")));
+            generator = new HistoryGenerator(memory::add);
+            source = memory;
+        }
+        ZabbixConnection zabbixConnection = new ZabbixConnection();
+        InfluxDBRouter router = new InfluxDBRouter();
+        Pipeline pipeline = new Pipeline(source, zabbixConnection, router);
+        Thread pipelineThread = new Thread(pipeline::run, "pipeline");
+        pipelineThread.start();
+        generator.start();
+
+        System.out.println(String.format("%-6s %8s %8s %12s %12s %10s %10s %8s %12s %10s",
+                "phase", "seconds", "items", "generated/s", "written/s", "p50 lag ms", "p99 lag ms", "B/point", "alloc MB/s", "api calls"));
+        String[] settings = {"duration", "rate", "items", "item.offset", "zabbix.latency", "influxdb.latency"};
+        Properties phase = new Properties();
+        phase.setProperty("duration", "30");
+        phase.setProperty("rate", "0");
+        phase.setProperty("items", "100000");
+        phase.setProperty("item.offset", "0");
+        phase.setProperty("zabbix.latency", "0");
+        phase.setProperty("influxdb.latency", "0");
+        for (int n = 1; scenario.getProperty("phase." + n + ".duration") != null; n++) {
+            for (String setting : settings) {
+                phase.setProperty(setting, scenario.getProperty("phase." + n + "." + setting, phase.getProperty(setting)));
+            }
+            long duration = Long.parseLong(phase.getProperty("duration"));
+            generator.rate = Long.parseLong(phase.getProperty("rate"));
+            generator.firstItem = 1 + Long.parseLong(phase.getProperty("item.offset"));
+            generator.items = Long.parseLong(phase.getProperty("items"));
+            zabbix.latencyMs = Long.parseLong(phase.getProperty("zabbix.latency"));
+            influx.latencyMs = Long.parseLong(phase.getProperty("influxdb.latency"));
+
+            long generated = generator.generated.sum();
+            long points = influx.points.sum();
+            long bytes = influx.bytes.sum();
+            long calls = zabbix.calls.sum();
+            long allocated = allocatedBytes();
+            influx.resetLags();
+            long start = System.nanoTime();
+            TimeUnit.SECONDS.sleep(duration);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double[] lags = influx.lagQuantiles(0.5, 0.99);
+            long written = influx.points.sum() - points;
+            System.out.println(String.format("%-6d %8.1f %8d %12.0f %12.0f %10.1f %10.1f %8.1f %12.1f %10d",
+                    n, seconds, generator.items, (generator.generated.sum() - generated) / seconds, written / seconds,
+                    lags[0], lags[1], written == 0 ? Double.NaN : (double) (influx.bytes.sum() - bytes) / written,
+                    (allocatedBytes() - allocated) / seconds / (1 << 20), zabbix.calls.sum() - calls));
+        }
+
+        pipelineThread.interrupt();
+        pipelineThread.join(TimeUnit.SECONDS.toMillis(60));
+        zabbixConnection.close();
+        router.close();
+        if (redis != null) {
+            redis.close();
+        }
+        zabbix.stop();
+        influx.stop();
+        if (memory != null && memory.backlog() > 0) {
+            System.out.println(memory.backlog() + " entries were still waiting in the source at the end");
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return bytes allocated so far by the exporter threads, leaving out the
+     * stand-ins and the generator
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            ThreadInfo info = threads.getThreadInfo(id);
+            if (info != null && !info.getThreadName().startsWith("loadtest-") && !info.getThreadName().startsWith("HTTP-Dispatcher")) {
+                total += Math.max(0, threads.getThreadAllocatedBytes(id));
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,58 @@
+package fi.tkgwf.zri.loadtest;
+
+import fi.tkgwf.zri.pipeline.BatchAck;
+import fi.tkgwf.zri.pipeline.HistorySource;
+import fi.tkgwf.zri.pipeline.SourceBatch;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory stand-in for the redis queue. A full queue blocks the generator,
+ * like a redis backlog that has reached its limit.
+ */
+class MemorySource implements HistorySource {
+
+    private final BlockingQueue<String> queue;
+
+    MemorySource(int capacity) {
+        queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    void add(List<String> entries) {
+        try {
+            for (String entry : entries) {
+                queue.put(entry);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int backlog() {
+        return queue.size();
+    }
+
+    @Override
+    public SourceBatch poll(int maxEntries) throws InterruptedException {
+        List<String> batch = new ArrayList<>(maxEntries);
+        String first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first != null) {
+            batch.add(first);
+            queue.drainTo(batch, maxEntries - 1);
+        }
+        return new SourceBatch(batch, BatchAck.NONE);
+    }
+
+    @Override
+    public void requeue(List<String> entries) {
+        add(entries);
+    }
+
+    @Override
+    public String getStats() {
+        return "in-memory backlog: " + queue.size();
+    }
+}
@@ -1,13 +1,21 @@
 package fi.tkgwf.zri;
 
-import fi.tkgwf.zri.bean.zabbix.Host;
-import fi.tkgwf.zri.bean.zabbix.Item;
 import fi.tkgwf.zri.config.Config;
-import fi.tkgwf.zri.connection.InfluxDBConnection;
+import fi.tkgwf.zri.connection.InfluxDBRouter;
+import fi.tkgwf.zri.connection.MetadataSnapshot;
+import fi.tkgwf.zri.connection.RedisConnection;
 import fi.tkgwf.zri.connection.ZabbixConnection;
-import io.lettuce.core.RedisClient;
-import io.lettuce.core.api.StatefulRedisConnection;
+import fi.tkgwf.zri.connection.ZabbixSync;
+import fi.tkgwf.zri.metrics.InfluxDBMetricsReporter;
+import fi.tkgwf.zri.metrics.MetricsServer;
+import fi.tkgwf.zri.pipeline.FileReplaySource;
+import fi.tkgwf.zri.pipeline.Lane;
+import fi.tkgwf.zri.pipeline.Pipeline;
+import fi.tkgwf.zri.pipeline.RedisListSource;
+import fi.tkgwf.zri.pipeline.RedisStreamSource;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -15,17 +23,12 @@ public class Main {
 
     private static final Logger LOG = LogManager.getLogger();
 
-    private static final String REDIS_QUEUE_ITEM_NAME = "zabbix_history";
-
-    private static final long STATS_INTERVAL_MS = 60 * 60 * 1000;
-
     private ZabbixConnection zabbix;
-    private InfluxDBConnection influx;
-    private RedisClient redis;
-    private StatefulRedisConnection<String, String> redisConnection;
-    private long nextStats;
-    private long processed;
-    private long skipped;
+    private InfluxDBRouter influx;
+    private RedisConnection redis;
+    private Pipeline pipeline;
+    private MetricsServer metricsServer;
+    private MetadataSnapshot snapshot;
 
     public static void main(String[] args) {
         Main m = new Main();
@@ -40,136 +43,70 @@ public class Main {
     }
 
     private void init() {
+        Config.startReloading();
         zabbix = new ZabbixConnection();
-        influx = new InfluxDBConnection();
-        redis = RedisClient.create("redis://" + Config.get("redis.host") + ":" + Config.get("redis.port"));
-        redisConnection = redis.connect();
-        nextStats = System.currentTimeMillis() + STATS_INTERVAL_MS;
-        processed = 0;
-        skipped = 0;
-    }
-
-    private void run() {
-        while (true) {
-            try {
-                String entry = redisConnection.sync().lpop(REDIS_QUEUE_ITEM_NAME);
-                if (entry == null) {
-                    try {
-                        Thread.sleep(2000); // empty queue, wait for a bit
-                        continue;
-                    } catch (InterruptedException ex) {
-                        LOG.info("Interrupted. Exiting...", ex);
-                        break;
-                    }
-                }
-                boolean success = processEntry(entry);
-                if (!success) {
-                    try {
-                        Thread.sleep(1000); // possibly lost connection or so, wait for a bit
-                    } catch (InterruptedException ex) {
-                        LOG.info("Interrupted. Exiting...", ex);
-                        break;
-                    }
-                }
-                if (System.currentTimeMillis() > nextStats) {
-                    logStats();
-                }
-            } catch (Exception ex) {
-                LOG.error("Unexpected error while processing data, data will be lost!", ex);
-            }
+        if (Config.getBoolean("zabbix.snapshot.enable", false)) {
+            snapshot = new MetadataSnapshot(zabbix);
+            snapshot.load();
+            snapshot.start();
         }
-    }
-
-    private void cleanup() {
-        influx.close();
-        redisConnection.close();
-        redis.shutdown();
-    }
-
-    /**
-     * Process a single entry
-     *
-     * @param entry
-     * @return true if the entry was either processed or discarded as expected,
-     * false in case of unexpected errors that should trigger a cooldown
-     */
-    private boolean processEntry(String entry) {
-        String[] split = entry.split(" ", 5);
-        if (split.length != 5) {
-            LOG.warn("Malformed data: " + entry);
-            return true;
+        if (Config.getBoolean("zabbix.preload.enable", false)) {
+            new ZabbixSync(zabbix).start();
         }
-        Long timeSeconds = safeLong(split[0]);
-        Long timeNanos = safeLong(split[1]);
-        String itemId = split[2];
-        String valueType = split[3];
-        String valueString = split[4];
-        if (timeSeconds == null || timeNanos == null) {
-            LOG.warn("Malformed data: " + entry);
-            skipped++;
-            return true;
+        influx = new InfluxDBRouter();
+        if (Config.getBoolean("metrics.http.enable", false)) {
+            try {
+                metricsServer = new MetricsServer();
+                metricsServer.start();
+            } catch (IOException ex) {
+                LOG.error("Failed to start the metrics server, continuing without it", ex);
+            }
         }
-        Double value;
-        switch (valueType) {
-            case "i": // InfluxDB doesn't handle cases where the item type has changed, so safer to just treat everything as floats
-            case "f":
-                value = Double.valueOf(valueString);
-                break;
-            case "s":
-            case "t":
-            case "l":
-                skipped++;
-                return true; // we're not interested in other types, just discard them
-            default:
-                LOG.warn("Malformed data: " + entry);
-                skipped++;
-                return true;
+        if (Config.getBoolean("metrics.influxdb.enable", false)) {
+            new InfluxDBMetricsReporter(influx.getDefaultConnection()).start();
         }
-        try {
-            Item item = zabbix.getItem(itemId);
-            if (item != null) {
-                Host host = zabbix.getHost(item.hostid);
-                if (host != null) {
-                    long timestamp = timeSeconds * 1_000_000_000 + timeNanos;
-                    influx.save(host, item, timestamp, value);
-                    processed++;
-                    return true;
-                } else {
-                    skipped++;
-                    return true;
+        List<Lane> lanes = new ArrayList<>();
+        String replayFiles = Config.get("replay.files");
+        if (replayFiles != null && !replayFiles.trim().isEmpty()) {
+            try {
+                lanes.add(new Lane("replay", new FileReplaySource()));
+            } catch (IOException ex) {
+                throw new IllegalStateException("Failed to list the files to replay", ex);
+            }
+        } else if ("stream".equalsIgnoreCase(Config.get("redis.input"))) {
+            redis = new RedisConnection();
+            lanes.add(new Lane(Config.get("redis.stream.key"), new RedisStreamSource(redis)));
+        } else {
+            redis = new RedisConnection();
+            for (String queue : Config.get("redis.queues").split(",")) {
+                queue = queue.trim();
+                if (!queue.isEmpty()) {
+                    lanes.add(new Lane(queue, new RedisListSource(redis, queue), Config.getInt("redis.queue." + queue + ".weight", 1),
+                            Config.getInt("redis.queue." + queue + ".priority", 0), Config.getInt("redis.queue." + queue + ".batch.size", 0)));
                 }
-            } else {
-                skipped++;
-                return true;
             }
-        } catch (IOException ex) {
-            LOG.error("Failed to get item from zabbix", ex);
-            handleFailure(entry);
-            return false;
+            if (lanes.isEmpty()) {
+                throw new IllegalStateException("No redis queues to read, check redis.queues");
+            }
         }
+        pipeline = new Pipeline(lanes, zabbix, influx);
     }
 
-    private void logStats() {
-        long durationMs = System.currentTimeMillis() - nextStats + STATS_INTERVAL_MS;
-        double durationH = durationMs / (60 * 60 * 1000.0);
-        double processedPerSecond = processed * 1000.0 / durationMs;
-        double skippedPerSecond = skipped * 1000.0 / durationMs;
-        LOG.info("Processed " + processed + " and skipped " + skipped + " items in the past " + durationH + " hours (processed: " + processedPerSecond + "/sec, skipped: " + skippedPerSecond + "/sec)");
-        nextStats = System.currentTimeMillis() + STATS_INTERVAL_MS;
-        processed = 0;
-        skipped = 0;
-    }
-
-    private void handleFailure(String data) {
-        LOG.info("Returning failed data to queue " + REDIS_QUEUE_ITEM_NAME + ": " + data);
-        redisConnection.sync().rpush(REDIS_QUEUE_ITEM_NAME, data);
+    private void run() {
+        pipeline.run();
     }
 
-    private Long safeLong(String s) {
-        try {
-            return Long.valueOf(s);
-        } catch (NumberFormatException ex) {
-            return null;
+    private void cleanup() {
+        if (snapshot != null) {
+            snapshot.save();
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        influx.close();
+        zabbix.close();
+        if (redis != null) {
+            redis.close();
         }
     }
 }
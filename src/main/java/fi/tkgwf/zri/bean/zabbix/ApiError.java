@@ -0,0 +1,13 @@
+package fi.tkgwf.zri.bean.zabbix;
+
+import com.google.gson.annotations.Expose;
+
+public class ApiError {
+
+    @Expose
+    public Integer code;
+    @Expose
+    public String message;
+    @Expose
+    public String data;
+}
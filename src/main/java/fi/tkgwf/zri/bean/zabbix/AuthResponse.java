@@ -1,9 +0,0 @@
-package fi.tkgwf.zri.bean.zabbix;
-
-import com.google.gson.annotations.Expose;
-
-public class AuthResponse {
-
-    @Expose
-    public String result;
-}
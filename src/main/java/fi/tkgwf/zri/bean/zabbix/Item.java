@@ -1,11 +1,13 @@
 package fi.tkgwf.zri.bean.zabbix;
 
 import com.google.gson.annotations.Expose;
+import fi.tkgwf.zri.utils.LineProtocol.SeriesPrefix;
+import java.util.List;
 
 public class Item {
 
     @Expose
-    public String itemid;
+    public long itemid;
     @Expose
     public String type;
     @Expose
@@ -14,4 +16,8 @@ public class Item {
     public String name;
     @Expose
     public String key_;
+    @Expose
+    public List<Host> hosts;
+
+    public transient volatile SeriesPrefix seriesPrefix;
 }
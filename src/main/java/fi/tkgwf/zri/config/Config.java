@@ -8,19 +8,29 @@ import java.net.URISyntaxException;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.TreeSet;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+/**
+ * Settings from the defaults, the properties file and ZRI_* environment
+ * variables, in increasing order of precedence. The properties file can be
+ * reloaded while running, see {@link #startReloading()}; components that read
+ * a setting only once at startup don't see the change.
+ */
 public abstract class Config {
 
     private static final Logger LOG = LogManager.getLogger();
-    private static final Map<String, String> CONFIG = new HashMap<>();
     private static final String ENV_PREFIX = "ZRI_";
+    private static final Map<String, String> OVERRIDES = new HashMap<>();
+    private static volatile Map<String, String> CONFIG; // replaced as a whole when reloaded
+    private static File configFile;
+    private static long configModified;
 
     static {
-        createDefaultConfig();
-        readConfig();
+        CONFIG = load(true);
     }
 
     /**
@@ -49,6 +59,22 @@ public abstract class Config {
         }
     }
 
+    /**
+     * Get the value for specified config key as a double
+     *
+     * @param key
+     * @param defaultValue Value to return if the specified config value is not
+     * a number or it is unset
+     * @return the value, or defaultValue if the value is not specified
+     */
+    public static double getDouble(String key, double defaultValue) {
+        try {
+            return Double.parseDouble(get(key));
+        } catch (NullPointerException | NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
     /**
      * Get the value for specified config key as a boolean
      *
@@ -68,25 +94,188 @@ public abstract class Config {
         }
     }
 
-    private static void createDefaultConfig() {
-        CONFIG.put("zabbix.url", "http://localhost");
-        CONFIG.put("zabbix.user", null);
-        CONFIG.put("zabbix.password", null);
-        CONFIG.put("redis.host", "localhost");
-        CONFIG.put("redis.port", "6379");
-        CONFIG.put("influxdb.url", "http://localhost:8086");
-        CONFIG.put("influxdb.user", "zabbix");
-        CONFIG.put("influxdb.password", "zabbix");
-        CONFIG.put("influxdb.database", "zabbix");
-        CONFIG.put("influxdb.retentionpolicy", "autogen");
-        CONFIG.put("influxdb.measurement", "zabbix");
-        CONFIG.put("influxdb.gzip", "true");
-        CONFIG.put("influxdb.batch.enable", "true");
-        CONFIG.put("influxdb.batch.size", "1000");
-        CONFIG.put("influxdb.batch.time", "10000");
+    /**
+     * Override the value of a config key, for example in benchmarks. Should
+     * be done before the components reading the key are created.
+     *
+     * @param key
+     * @param value
+     */
+    public static synchronized void set(String key, String value) {
+        OVERRIDES.put(key, value);
+        Map<String, String> config = new HashMap<>(CONFIG);
+        config.put(key, value);
+        CONFIG = config;
     }
 
-    private static void readConfig() {
+    /**
+     * Read the properties file again if it has been modified, and log the
+     * settings that changed. If the file can't be read, for example while it
+     * is being saved, the current settings are kept and the file is read
+     * again on the next call.
+     *
+     * @return true if the file was read
+     */
+    public static synchronized boolean reload() {
+        File file = findConfigFile();
+        long modified = file == null ? 0 : file.lastModified();
+        if (Objects.equals(file, configFile) && modified == configModified) {
+            return false;
+        }
+        Map<String, String> old = CONFIG;
+        Map<String, String> config = load(false);
+        if (config == null) {
+            return false;
+        }
+        TreeSet<String> keys = new TreeSet<>(old.keySet());
+        keys.addAll(config.keySet());
+        keys.removeIf(key -> Objects.equals(old.get(key), config.get(key)));
+        CONFIG = config;
+        LOG.info("Reloaded " + (configFile == null ? "configuration" : configFile) + (keys.isEmpty() ? ", nothing changed" : ", changed: " + keys));
+        return true;
+    }
+
+    /**
+     * Start checking the properties file for changes every
+     * config.reload.interval milliseconds, unless it is 0
+     */
+    public static void startReloading() {
+        long interval = getInt("config.reload.interval", 10000);
+        if (interval <= 0) {
+            return;
+        }
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(interval);
+                    reload();
+                }
+            } catch (InterruptedException ex) {
+                LOG.debug("Interrupted. Exiting...", ex);
+            }
+        }, "config-reload");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @param fallback if true, the defaults are used in place of a properties
+     * file that can't be read
+     * @return the settings, or null if the properties file couldn't be read
+     */
+    private static Map<String, String> load(boolean fallback) {
+        Map<String, String> config = new HashMap<>();
+        createDefaultConfig(config);
+        if (!readConfig(config, fallback)) {
+            return null;
+        }
+        config.putAll(OVERRIDES);
+        return config;
+    }
+
+    private static void createDefaultConfig(Map<String, String> config) {
+        config.put("config.reload.interval", "10000");
+        config.put("zabbix.url", "http://localhost");
+        config.put("zabbix.user", null);
+        config.put("zabbix.password", null);
+        config.put("zabbix.api.concurrency", "8");
+        config.put("zabbix.timeout", "30000");
+        config.put("zabbix.lookup.window", "50");
+        config.put("zabbix.lookup.batch", "1000");
+        config.put("zabbix.lookup.threads", "2");
+        config.put("zabbix.cache.items.max", "2000000");
+        config.put("zabbix.cache.hosts.max", "100000");
+        config.put("zabbix.cache.strings.max", "1000000");
+        config.put("zabbix.preload.enable", "false");
+        config.put("zabbix.preload.hosts.per.call", "100");
+        config.put("zabbix.sync.interval", "30000");
+        config.put("zabbix.snapshot.enable", "false");
+        config.put("zabbix.snapshot.file", "zabbix_metadata.snapshot");
+        config.put("zabbix.snapshot.interval", "300000");
+        config.put("replay.files", null);
+        config.put("replay.checkpoint.file", "zri_replay.checkpoint");
+        config.put("replay.checkpoint.interval", "10000");
+        config.put("replay.rate", "0");
+        config.put("replay.threads", "2");
+        config.put("replay.chunk.mb", "16");
+        config.put("redis.host", "localhost");
+        config.put("redis.port", "6379");
+        config.put("redis.queues", "zabbix_history");
+        config.put("redis.batch.size", "1000");
+        config.put("redis.batch.wait", "2000");
+        config.put("redis.reliable.enable", "false");
+        config.put("redis.reliable.consumer", null);
+        config.put("redis.input", "list");
+        config.put("redis.stream.key", "zabbix_history");
+        config.put("redis.stream.group", "zabbix_redis_influxdb");
+        config.put("redis.stream.consumer", null);
+        config.put("redis.stream.field", "value");
+        config.put("redis.stream.claim.idle", "60000");
+        config.put("redis.stream.claim.interval", "30000");
+        config.put("pipeline.enrich.threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        config.put("pipeline.writer.threads", "1");
+        config.put("pipeline.queue.size", "16");
+        config.put("pipeline.parked.max", "100000");
+        config.put("tuner.enable", "false");
+        config.put("tuner.interval", "5000");
+        config.put("tuner.decrease", "0.5");
+        config.put("tuner.latency.target", "2000");
+        config.put("tuner.redis.batch.size.min", "100");
+        config.put("tuner.redis.batch.size.max", "10000");
+        config.put("tuner.influxdb.batch.size.min", "500");
+        config.put("tuner.influxdb.batch.size.max", "20000");
+        config.put("tuner.influxdb.batch.time.min", "1000");
+        config.put("tuner.influxdb.batch.time.max", "30000");
+        config.put("tuner.influxdb.write.concurrency.min", "1");
+        config.put("tuner.influxdb.write.concurrency.max", "16");
+        config.put("tuner.pipeline.enrich.threads.min", "1");
+        config.put("tuner.pipeline.enrich.threads.max", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        config.put("retry.backoff.min", "100");
+        config.put("retry.backoff.max", "30000");
+        config.put("circuit.failures", "5");
+        config.put("spill.enable", "false");
+        config.put("spill.dir", "spill");
+        config.put("spill.segment.mb", "64");
+        config.put("spill.max.mb", "1024");
+        config.put("spill.latency.threshold", "10000");
+        config.put("spill.replay.rate", "50000");
+        config.put("rollup.enable", "false");
+        config.put("rollup.windows", "1m,5m,1h");
+        config.put("rollup.lateness", "60000");
+        config.put("rollup.series.max", "1000000");
+        config.put("rollup.destination", "retentionpolicy");
+        config.put("rollup.retentionpolicy.prefix", "rollup_");
+        config.put("rollup.raw.enable", "true");
+        config.put("deadband.enable", "false");
+        config.put("deadband.heartbeat", "600000");
+        config.put("influxdb.api", "v1");
+        config.put("influxdb.url", "http://localhost:8086");
+        config.put("influxdb.user", "zabbix");
+        config.put("influxdb.password", "zabbix");
+        config.put("influxdb.database", "zabbix");
+        config.put("influxdb.retentionpolicy", "autogen");
+        config.put("influxdb.measurement", "zabbix");
+        config.put("influxdb.gzip", "true");
+        config.put("influxdb.batch.enable", "true");
+        config.put("influxdb.batch.size", "1000");
+        config.put("influxdb.batch.time", "10000");
+        config.put("influxdb.batch.sort", "true");
+        config.put("influxdb.org", null);
+        config.put("influxdb.bucket", null);
+        config.put("influxdb.token", null);
+        config.put("influxdb.write.concurrency", "4");
+        config.put("influxdb.retry.attempts", "5");
+        config.put("influxdb.timeout", "30000");
+        config.put("influxdb.backends", null);
+        config.put("influxdb.shard.by", "host");
+        config.put("metrics.http.enable", "false");
+        config.put("metrics.http.host", "0.0.0.0");
+        config.put("metrics.http.port", "9108");
+        config.put("metrics.influxdb.enable", "false");
+        config.put("metrics.influxdb.interval", "60000");
+    }
+
+    private static File findConfigFile() {
         try {
             FileFilter configFileFilter = f -> f.isFile() && f.getName().equals("zabbix_redis_influxdb.properties");
             File jarLocation = new File(Config.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath()).getParentFile();
@@ -98,24 +287,44 @@ public abstract class Config {
                     configFiles = parentFile.listFiles(configFileFilter);
                 }
             }
-            if (configFiles != null && configFiles.length > 0) {
-                LOG.debug("Config: " + configFiles[0]);
-                Properties props = new Properties();
-                props.load(new FileInputStream(configFiles[0]));
-                Enumeration<?> e = props.propertyNames();
-                while (e.hasMoreElements()) {
-                    String key = (String) e.nextElement();
-                    String value = props.getProperty(key);
-                    CONFIG.put(key, value);
+            return configFiles != null && configFiles.length > 0 ? configFiles[0] : null;
+        } catch (URISyntaxException ex) {
+            LOG.warn("Failed to find the configuration file", ex);
+            return null;
+        }
+    }
+
+    private static boolean readConfig(Map<String, String> config, boolean fallback) {
+        File file = findConfigFile();
+        long modified = file == null ? 0 : file.lastModified();
+        if (file != null) {
+            LOG.debug("Config: " + file);
+            Properties props = new Properties();
+            try (FileInputStream in = new FileInputStream(file)) {
+                props.load(in);
+            } catch (IOException ex) {
+                if (!fallback) {
+                    LOG.warn("Failed to read configuration, keeping the current settings...", ex);
+                    return false;
                 }
+                LOG.warn("Failed to read configuration, using default values...", ex);
+                modified = 0; // read it again on the next reload
+            }
+            Enumeration<?> e = props.propertyNames();
+            while (e.hasMoreElements()) {
+                String key = (String) e.nextElement();
+                String value = props.getProperty(key);
+                config.put(key, value);
             }
-            System.getenv().forEach((key, value) -> {
-                if (key.startsWith(ENV_PREFIX)) {
-                    CONFIG.put(key.substring(ENV_PREFIX.length()).toLowerCase().replace("_", "."), value);
-                }
-            });
-        } catch (URISyntaxException | IOException ex) {
-            LOG.warn("Failed to read configuration, using default values...", ex);
         }
+        configFile = file;
+        configModified = modified;
+        // the environment of a running process doesn't change, but it is applied again so it keeps precedence over the file
+        System.getenv().forEach((key, value) -> {
+            if (key.startsWith(ENV_PREFIX)) {
+                config.put(key.substring(ENV_PREFIX.length()).toLowerCase().replace("_", "."), value);
+            }
+        });
+        return true;
     }
 }
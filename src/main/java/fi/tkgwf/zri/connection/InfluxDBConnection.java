@@ -3,57 +3,706 @@ package fi.tkgwf.zri.connection;
 import fi.tkgwf.zri.bean.zabbix.Host;
 import fi.tkgwf.zri.bean.zabbix.Item;
 import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.metrics.Counter;
+import fi.tkgwf.zri.metrics.Histogram;
+import fi.tkgwf.zri.metrics.Metrics;
+import fi.tkgwf.zri.utils.Backoff;
+import fi.tkgwf.zri.utils.CircuitBreaker;
+import fi.tkgwf.zri.utils.LineProtocol;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import org.influxdb.InfluxDB;
-import org.influxdb.InfluxDBFactory;
-import org.influxdb.dto.Point;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Credentials;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
+/**
+ * Writes line protocol to the InfluxDB HTTP API, either the 1.x /write
+ * endpoint or the 2.x /api/v2/write endpoint.
+ *
+ * Writes are asynchronous with a bounded number of requests in flight. Failed
+ * requests are retried with backoff, honoring Retry-After on 429 and 503
+ * responses, and the caller is notified through a future once the batch has
+ * been written or has failed for good. The max number of requests in flight
+ * can be changed while running, see {@link #setMaxInFlight}.
+ */
 public class InfluxDBConnection {
 
-    private final InfluxDB influxDB;
+    private static final Logger LOG = LogManager.getLogger();
 
+    private static final MediaType MEDIA_TYPE = MediaType.parse("text/plain; charset=utf-8");
+    private static final int MAX_ERROR_LENGTH = 500;
+
+    private final String name;
+    private final String backend;
+    private final OkHttpClient client;
+    private final HttpUrl base;
+    private final boolean v2;
+    private final String defaultDatabase;
+    private final String defaultRetentionPolicy;
+    private final Target defaultTarget;
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+    private final String authorization;
+    private final boolean gzip;
+    private final int batchSize;
+    private final long batchTimeMs;
+    private volatile int maxInFlight;
+    private final int maxAttempts;
+    private final long backoffMinMs;
+    private final long backoffMaxMs;
+    private final ResizableSemaphore inFlight;
+    private final ScheduledExecutorService retryScheduler;
+    private final Histogram writeLatency;
+    private final Counter writeErrors;
+    private final Counter writeRetries;
+    private final Counter writtenBytes;
+    private final Counter sentBytes;
+    private final CircuitBreaker breaker;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder requestNanos = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder saturated = new LongAdder();
+
+    /**
+     * Connection configured with the influxdb.* settings
+     */
     public InfluxDBConnection() {
-        String url = Config.get("influxdb.url");
-        String user = Config.get("influxdb.user");
-        String password = Config.get("influxdb.password");
-        String database = Config.get("influxdb.database");
-        String retentionPolicy = Config.get("influxdb.retentionpolicy");
-        boolean gzip = Config.getBoolean("influxdb.gzip", true);
+        this(null);
+    }
+
+    /**
+     * Connection to one of several backends. Each influxdb.* connection
+     * setting can be overridden for the backend with
+     * influxdb.backend.&lt;name&gt;.*
+     *
+     * @param name name of the backend, or null for the default connection
+     */
+    public InfluxDBConnection(String name) {
+        this.name = name == null ? "default" : name;
+        this.backend = name;
+        String url = setting(name, "url");
+        gzip = Config.getBoolean("influxdb.gzip", true);
         boolean batch = Config.getBoolean("influxdb.batch.enable", true);
-        int batchSize = Config.getInt("influxdb.batch.size", 1000);
-        int batchTime = Config.getInt("influxdb.batch.time", 10000);
+        batchSize = batch ? Math.max(1, Config.getInt("influxdb.batch.size", 1000)) : 1;
+        batchTimeMs = batch ? Config.getInt("influxdb.batch.time", 10000) : 0;
+        maxInFlight = getConfiguredMaxInFlight();
+        maxAttempts = Math.max(1, Config.getInt("influxdb.retry.attempts", 5));
+        backoffMinMs = Config.getInt("retry.backoff.min", 100);
+        backoffMaxMs = Config.getInt("retry.backoff.max", 30000);
+        inFlight = new ResizableSemaphore(maxInFlight);
 
-        influxDB = InfluxDBFactory.connect(url, user, password).setDatabase(database).setRetentionPolicy(retentionPolicy);
-        if (gzip) {
-            influxDB.enableGzip();
+        base = HttpUrl.get(url);
+        v2 = "v2".equalsIgnoreCase(setting(name, "api"));
+        if (v2) {
+            String token = setting(name, "token");
+            if (token == null || token.isEmpty()) {
+                throw new IllegalArgumentException("The InfluxDB v2 API needs a token, set influxdb.token"
+                        + (name == null ? "" : " or influxdb.backend." + name + ".token"));
+            }
+            authorization = "Token " + token;
+            defaultDatabase = setting(name, "bucket");
+            defaultRetentionPolicy = null;
         } else {
-            influxDB.disableGzip();
+            String user = setting(name, "user");
+            authorization = user == null || user.isEmpty() ? null : Credentials.basic(user, setting(name, "password"));
+            defaultDatabase = setting(name, "database");
+            defaultRetentionPolicy = setting(name, "retentionpolicy");
+        }
+        defaultTarget = target(null, null);
+        writeLatency = Metrics.histogram("zri_influxdb_write_seconds", "InfluxDB write request latency", "backend", this.name);
+        writeErrors = Metrics.counter("zri_influxdb_write_errors_total", "Failed InfluxDB write requests", "backend", this.name);
+        writeRetries = Metrics.counter("zri_influxdb_write_retries_total", "Retried InfluxDB write requests", "backend", this.name);
+        writtenBytes = Metrics.counter("zri_influxdb_written_bytes_total", "Uncompressed line protocol bytes written to InfluxDB", "backend", this.name);
+        sentBytes = Metrics.counter("zri_influxdb_sent_bytes_total", "Request body bytes sent to InfluxDB, after compression and including retries", "backend", this.name);
+        breaker = new CircuitBreaker(name == null ? "influxdb" : "influxdb-" + name);
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxInFlight);
+        dispatcher.setMaxRequestsPerHost(maxInFlight);
+        long timeoutMs = Config.getInt("influxdb.timeout", 30000);
+        client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectTimeout(Duration.ofMillis(timeoutMs))
+                .readTimeout(Duration.ofMillis(timeoutMs))
+                .writeTimeout(Duration.ofMillis(timeoutMs))
+                .build();
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "influxdb-retry");
+            t.setDaemon(true);
+            return t;
+        });
+        Metrics.gauge("zri_influxdb_writes_in_flight", "InfluxDB write requests currently in flight or waiting for a retry", () -> maxInFlight - inFlight.availablePermits(), "backend", this.name);
+    }
+
+    private static String setting(String backend, String key) {
+        String value = backend == null ? null : Config.get("influxdb.backend." + backend + "." + key);
+        return value != null ? value : Config.get("influxdb." + key);
+    }
+
+    /**
+     * Get a write destination on this backend
+     *
+     * @param database database, or the bucket with the v2 API. Null for the
+     * configured one.
+     * @param retentionPolicy retention policy, or null for the configured one.
+     * Ignored with the v2 API.
+     * @return the target
+     */
+    public Target target(String database, String retentionPolicy) {
+        String db = database == null ? defaultDatabase : database;
+        String rp = v2 ? null : retentionPolicy == null ? defaultRetentionPolicy : retentionPolicy;
+        String id = rp == null || rp.isEmpty() ? db : db + "/" + rp;
+        return targets.computeIfAbsent(id, k -> {
+            HttpUrl.Builder url = base.newBuilder();
+            if (v2) {
+                url.addPathSegments("api/v2/write").addQueryParameter("org", setting(name, "org")).addQueryParameter("bucket", db);
+            } else {
+                url.addPathSegment("write").addQueryParameter("db", db);
+                if (rp != null && !rp.isEmpty()) {
+                    url.addQueryParameter("rp", rp);
+                }
+            }
+            return new Target(this, name + "/" + id, db, url.addQueryParameter("precision", "ns").build());
+        });
+    }
+
+    /**
+     * @return the target of the configured database and retention policy
+     */
+    public Target getDefaultTarget() {
+        return defaultTarget;
+    }
+
+    /**
+     * @return false if recent writes have been failing
+     */
+    public boolean isHealthy() {
+        return breaker.isClosed();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Append a value to a batch buffer
+     *
+     * @param buffer
+     * @param host
+     * @param item
+     * @param timestamp in nanoseconds
+     * @param value
+     * @return false if the value can't be stored in InfluxDB (NaN or infinite)
+     */
+    public boolean append(StringBuilder buffer, Host host, Item item, long timestamp, double value) {
+        if (!isWritable(value)) {
+            return false;
+        }
+        LineProtocol.append(buffer, host, item, timestamp, value);
+        return true;
+    }
+
+    /**
+     * @param value
+     * @return false if the value can't be stored in InfluxDB (NaN or infinite)
+     */
+    public static boolean isWritable(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    /**
+     * Start writing lines created with {@link #append}. Blocks while the max
+     * number of writes are already in flight. While recent writes have been
+     * failing, attempts fail fast without contacting InfluxDB.
+     *
+     * @param lines
+     * @param retryUntilWritten if true, retryable failures are retried until
+     * the write succeeds instead of giving up after the configured number of
+     * attempts
+     * @return a future completed once the lines have been written, or
+     * exceptionally with an {@link InfluxDBWriteException}
+     * @throws InterruptedException
+     */
+    public CompletableFuture<Void> writeAsync(String lines, boolean retryUntilWritten) throws InterruptedException {
+        return writeAsync(defaultTarget, lines, retryUntilWritten);
+    }
+
+    /**
+     * Start writing lines to a specific target of this backend, see
+     * {@link #writeAsync(String, boolean)}
+     *
+     * @param target
+     * @param lines
+     * @param retryUntilWritten
+     * @return a future completed once the lines have been written
+     * @throws InterruptedException
+     */
+    public CompletableFuture<Void> writeAsync(Target target, String lines, boolean retryUntilWritten) throws InterruptedException {
+        if (!inFlight.tryAcquire()) {
+            saturated.increment();
+            inFlight.acquire();
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        new Write(target.url, lines, retryUntilWritten, result).send();
+        return result;
+    }
+
+    /**
+     * Like {@link #writeAsync(Target, String, boolean)}, but returns null
+     * instead of waiting if the max number of writes are already in flight
+     *
+     * @param target
+     * @param lines
+     * @param retryUntilWritten
+     * @return a future completed once the lines have been written, or null
+     */
+    public CompletableFuture<Void> tryWriteAsync(Target target, String lines, boolean retryUntilWritten) {
+        return tryWriteAsync(target, () -> lines, retryUntilWritten);
+    }
+
+    /**
+     * Like {@link #tryWriteAsync(Target, String, boolean)}, but the lines are
+     * only created once the write can be started
+     *
+     * @param target
+     * @param lines called in the calling thread before returning, if at all
+     * @param retryUntilWritten
+     * @return a future completed once the lines have been written, or null
+     */
+    public CompletableFuture<Void> tryWriteAsync(Target target, Supplier<String> lines, boolean retryUntilWritten) {
+        if (!inFlight.tryAcquire()) {
+            saturated.increment();
+            return null;
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        new Write(target.url, lines.get(), retryUntilWritten, result).send();
+        return result;
+    }
+
+    /**
+     * Write lines created with {@link #append} and wait for the result
+     *
+     * @param buffer
+     * @throws InfluxDBWriteException
+     */
+    public void write(StringBuilder buffer) {
+        write(defaultTarget, buffer);
+    }
+
+    /**
+     * Write lines to a specific target of this backend and wait for the result
+     *
+     * @param target
+     * @param buffer
+     * @throws InfluxDBWriteException
+     */
+    public void write(Target target, StringBuilder buffer) {
+        try {
+            writeAsync(target, buffer.toString(), false).join();
+        } catch (CompletionException ex) {
+            throw ex.getCause() instanceof InfluxDBWriteException ? (InfluxDBWriteException) ex.getCause() : ex;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InfluxDBWriteException("Interrupted while waiting to write", true, ex);
         }
-        if (batch) {
-            influxDB.enableBatch(batchSize, batchTime, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait for the writes in flight to finish
+     *
+     * @param timeoutMs
+     * @return false if some writes were still in flight after the timeout
+     * @throws InterruptedException
+     */
+    public boolean awaitWrites(long timeoutMs) throws InterruptedException {
+        int permits = maxInFlight;
+        if (!inFlight.tryAcquire(permits, timeoutMs, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        inFlight.release(permits);
+        return true;
+    }
+
+    /**
+     * Change the max number of write requests in flight. Writes already in
+     * flight are not affected, new ones wait until the number in flight is
+     * below the new limit.
+     *
+     * @param max
+     */
+    public synchronized void setMaxInFlight(int max) {
+        max = Math.max(1, max);
+        int change = max - maxInFlight;
+        if (change == 0) {
+            return;
+        }
+        if (change > 0) {
+            inFlight.release(change);
         } else {
-            influxDB.disableBatch();
+            inFlight.reducePermits(-change);
         }
+        maxInFlight = max;
+        client.dispatcher().setMaxRequests(max);
+        client.dispatcher().setMaxRequestsPerHost(max);
     }
 
-    public void save(Host host, Item item, Long timestamp, Number value) {
-        Point entry = toPoint(host, item, timestamp, value);
-        influxDB.write(entry);
+    /**
+     * @return max number of write requests in flight
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return configured max number of write requests in flight, read from the
+     * current config so that a reload is picked up
+     */
+    public int getConfiguredMaxInFlight() {
+        try {
+            return Math.max(1, Integer.parseInt(setting(backend, "write.concurrency")));
+        } catch (NullPointerException | NumberFormatException ex) {
+            return 4;
+        }
+    }
+
+    /**
+     * @return totals of the write requests since startup
+     */
+    public WriteStats getWriteStats() {
+        return new WriteStats(requests.sum(), requestNanos.sum(), throttled.sum(), timeouts.sum(), saturated.sum());
+    }
+
+    /**
+     * @return max number of values per write
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return max time in milliseconds a value may wait for a write
+     */
+    public long getBatchTimeMs() {
+        return batchTimeMs;
     }
 
     public void close() {
-        influxDB.close();
-    }
-
-    private Point toPoint(Host host, Item item, Long timestamp, Number value) {
-        return Point.measurement(item.key_.split("\\[", 2)[0])
-                .time(timestamp, TimeUnit.NANOSECONDS)
-                .tag("item", item.name)
-                .tag("host", host.host)
-                .tag("itemid", item.itemid)
-                .tag("hostid", host.hostid)
-                .tag("key", item.key_)
-                .addField("value", value)
-                .build();
+        retryScheduler.shutdownNow();
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    private Request createRequest(HttpUrl url, String lines) {
+        Request.Builder builder = new Request.Builder().url(url);
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+        if (gzip) {
+            builder.header("Content-Encoding", "gzip").post(new GzipBody(lines, sentBytes));
+        } else {
+            RequestBody body = RequestBody.create(lines, MEDIA_TYPE);
+            try {
+                sentBytes.add(body.contentLength());
+            } catch (IOException ex) {
+                // not thrown for an in-memory body
+            }
+            builder.post(body);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the delay requested by a Retry-After header in milliseconds, or
+     * -1 if there is none
+     */
+    private static long retryAfterMs(Response response) {
+        String value = response.header("Retry-After");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException ex) {
+            try {
+                return Math.max(0, ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException ex2) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Semaphore whose number of permits can be reduced below the permits in
+     * use
+     */
+    private static class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    /**
+     * Counts of the write requests sent to a backend since startup
+     */
+    public static class WriteStats {
+
+        /**
+         * Completed requests, including failed ones
+         */
+        public final long requests;
+        /**
+         * Total time spent waiting for the completed requests
+         */
+        public final long requestNanos;
+        /**
+         * Requests rejected with HTTP 429 or 503
+         */
+        public final long throttled;
+        /**
+         * Requests that timed out
+         */
+        public final long timeouts;
+        /**
+         * Times a write had to wait for, or was refused, a free request slot
+         */
+        public final long saturated;
+
+        public WriteStats(long requests, long requestNanos, long throttled, long timeouts, long saturated) {
+            this.requests = requests;
+            this.requestNanos = requestNanos;
+            this.throttled = throttled;
+            this.timeouts = timeouts;
+            this.saturated = saturated;
+        }
+    }
+
+    /**
+     * A database and retention policy on a backend
+     */
+    public static class Target {
+
+        private final InfluxDBConnection connection;
+        private final String id;
+        private final String database;
+        private final HttpUrl url;
+
+        private Target(InfluxDBConnection connection, String id, String database, HttpUrl url) {
+            this.connection = connection;
+            this.id = id;
+            this.database = database;
+            this.url = url;
+        }
+
+        public InfluxDBConnection getConnection() {
+            return connection;
+        }
+
+        /**
+         * @param retentionPolicy
+         * @return the same database with another retention policy
+         */
+        public Target withRetentionPolicy(String retentionPolicy) {
+            return connection.target(database, retentionPolicy);
+        }
+
+        /**
+         * @return backend name, database and retention policy separated with
+         * slashes
+         */
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return id;
+        }
+    }
+
+    /**
+     * Request body compressed while it is being sent, so the compressed batch
+     * is never held in memory as a whole
+     */
+    private static class GzipBody extends RequestBody {
+
+        private final String lines;
+        private final Counter sentBytes;
+
+        GzipBody(String lines, Counter sentBytes) {
+            this.lines = lines;
+            this.sentBytes = sentBytes;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return MEDIA_TYPE;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            ForwardingSink counting = new ForwardingSink(sink) {
+                @Override
+                public void write(Buffer source, long byteCount) throws IOException {
+                    super.write(source, byteCount);
+                    sentBytes.add(byteCount);
+                }
+            };
+            try (BufferedSink gzipSink = Okio.buffer(new GzipSink(counting))) {
+                gzipSink.writeUtf8(lines);
+            }
+        }
+    }
+
+    /**
+     * A single batch being written, including its retries
+     */
+    private class Write implements Callback {
+
+        private final HttpUrl url;
+        private final String lines;
+        private final boolean retryUntilWritten;
+        private final CompletableFuture<Void> result;
+        private final Backoff backoff = new Backoff(backoffMinMs, backoffMaxMs);
+        private int attempts;
+        private long start;
+
+        Write(HttpUrl url, String lines, boolean retryUntilWritten, CompletableFuture<Void> result) {
+            this.url = url;
+            this.lines = lines;
+            this.retryUntilWritten = retryUntilWritten;
+            this.result = result;
+        }
+
+        void send() {
+            attempts++;
+            if (!breaker.allowRequest()) {
+                retryOrFail(new InfluxDBWriteException("InfluxDB unavailable, not writing until it recovers", true), -1);
+                return;
+            }
+            start = System.nanoTime();
+            try {
+                client.newCall(createRequest(url, lines)).enqueue(this);
+            } catch (RuntimeException ex) {
+                // eg. the client has been shut down
+                breaker.failure();
+                finish(new InfluxDBWriteException("Failed to send an InfluxDB write", false, ex));
+            }
+        }
+
+        @Override
+        public void onFailure(Call call, IOException ex) {
+            observe();
+            if (ex instanceof InterruptedIOException) {
+                timeouts.increment();
+            }
+            writeErrors.inc();
+            breaker.failure();
+            retryOrFail(new InfluxDBWriteException("InfluxDB write failed", true, ex), -1);
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            observe();
+            try (Response r = response) {
+                if (r.isSuccessful()) {
+                    breaker.success();
+                    writtenBytes.add(lines.length());
+                    finish(null);
+                    return;
+                }
+                int code = r.code();
+                if (code == 429 || code == 503) {
+                    throttled.increment();
+                } else if (code == 408 || code == 504) {
+                    timeouts.increment();
+                }
+                boolean retryable = code == 429 || code >= 500;
+                if (retryable) {
+                    breaker.failure();
+                } else {
+                    breaker.success(); // InfluxDB is up, it just didn't like this batch
+                }
+                writeErrors.inc();
+                retryOrFail(new InfluxDBWriteException("InfluxDB write failed with HTTP " + code + ": " + errorMessage(r), retryable), retryAfterMs(r));
+            }
+        }
+
+        private void observe() {
+            long nanos = System.nanoTime() - start;
+            writeLatency.observe(nanos / 1e9);
+            requests.increment();
+            requestNanos.add(nanos);
+        }
+
+        private String errorMessage(Response response) {
+            try {
+                ResponseBody body = response.body();
+                String message = body == null ? "" : body.string();
+                return message.length() > MAX_ERROR_LENGTH ? message.substring(0, MAX_ERROR_LENGTH) + "..." : message;
+            } catch (IOException ex) {
+                return ex.toString();
+            }
+        }
+
+        private void retryOrFail(InfluxDBWriteException ex, long retryAfterMs) {
+            if (!ex.isRetryable() || (!retryUntilWritten && attempts >= maxAttempts)) {
+                finish(ex);
+                return;
+            }
+            long delay = retryAfterMs >= 0 ? Math.min(retryAfterMs, backoffMaxMs) : backoff.next();
+            LOG.debug("Retrying InfluxDB write in " + delay + " ms after attempt " + attempts, ex);
+            writeRetries.inc();
+            try {
+                retryScheduler.schedule(this::send, delay, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException rex) {
+                finish(ex); // shutting down
+            }
+        }
+
+        private void finish(InfluxDBWriteException ex) {
+            inFlight.release();
+            if (ex == null) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(ex);
+            }
+        }
     }
 }
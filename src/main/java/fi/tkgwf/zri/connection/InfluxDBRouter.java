@@ -0,0 +1,183 @@
+package fi.tkgwf.zri.connection;
+
+import fi.tkgwf.zri.bean.zabbix.Host;
+import fi.tkgwf.zri.bean.zabbix.Item;
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.connection.InfluxDBConnection.Target;
+import fi.tkgwf.zri.utils.LineProtocol;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decides which InfluxDB backend, database and retention policy each value is
+ * written to.
+ *
+ * Values are spread over the backends listed in influxdb.backends with
+ * consistent hashing on either the host name or the measurement, so that the
+ * series of a host or measurement stay on the same backend and adding a
+ * backend only moves a share of them. While a backend is failing, its values
+ * go to the next healthy backend on the ring instead. Routing rules
+ * influxdb.route.&lt;n&gt;.* matching the item key prefix override the
+ * database and retention policy, the first matching rule wins.
+ */
+public class InfluxDBRouter {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final int VIRTUAL_NODES = 100;
+
+    private final InfluxDBConnection[] connections;
+    private final boolean byHost;
+    private final String[] prefixes;
+    private final Target[][] targets; // [rule][connection], the last rule being the default
+    private final int[] ringHashes;
+    private final int[] ringOwners;
+
+    /**
+     * Router configured with influxdb.backends, influxdb.shard.by and
+     * influxdb.route.&lt;n&gt;.*
+     */
+    public InfluxDBRouter() {
+        this(createConnections());
+    }
+
+    /**
+     * Router over the given backends using the configured routing rules
+     *
+     * @param connections
+     */
+    public InfluxDBRouter(InfluxDBConnection... connections) {
+        if (connections.length == 0) {
+            throw new IllegalArgumentException("No InfluxDB backends");
+        }
+        this.connections = connections;
+        byHost = !"measurement".equalsIgnoreCase(Config.get("influxdb.shard.by"));
+        List<String> rulePrefixes = new ArrayList<>();
+        List<String[]> ruleTargets = new ArrayList<>();
+        for (int i = 1; Config.get("influxdb.route." + i + ".prefix") != null; i++) {
+            rulePrefixes.add(Config.get("influxdb.route." + i + ".prefix"));
+            ruleTargets.add(new String[]{Config.get("influxdb.route." + i + ".database"), Config.get("influxdb.route." + i + ".retentionpolicy")});
+        }
+        prefixes = rulePrefixes.toArray(new String[0]);
+        targets = new Target[prefixes.length + 1][connections.length];
+        for (int c = 0; c < connections.length; c++) {
+            for (int r = 0; r < prefixes.length; r++) {
+                targets[r][c] = connections[c].target(ruleTargets.get(r)[0], ruleTargets.get(r)[1]);
+            }
+            targets[prefixes.length][c] = connections[c].getDefaultTarget();
+        }
+
+        long[] ring = new long[connections.length * VIRTUAL_NODES];
+        for (int c = 0; c < connections.length; c++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                // hash in the high bits, owner in the low bits so that equal hashes sort deterministically
+                ring[c * VIRTUAL_NODES + v] = (long) mix((connections[c].getName() + "#" + v).hashCode()) << 32 | c;
+            }
+        }
+        Arrays.sort(ring);
+        ringHashes = new int[ring.length];
+        ringOwners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            ringHashes[i] = (int) (ring[i] >> 32);
+            ringOwners[i] = (int) ring[i];
+        }
+        if (connections.length > 1 || prefixes.length > 0) {
+            LOG.info("Routing to " + connections.length + " InfluxDB backends by " + (byHost ? "host" : "measurement") + " with " + prefixes.length + " rules");
+        }
+    }
+
+    private static InfluxDBConnection[] createConnections() {
+        String backends = Config.get("influxdb.backends");
+        if (backends == null || backends.trim().isEmpty()) {
+            return new InfluxDBConnection[]{new InfluxDBConnection()};
+        }
+        return Arrays.stream(backends.split(",")).map(String::trim).filter(s -> !s.isEmpty())
+                .map(InfluxDBConnection::new).toArray(InfluxDBConnection[]::new);
+    }
+
+    /**
+     * spreads the bits of String.hashCode() over the ring
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ h >>> 16;
+    }
+
+    /**
+     * @param host
+     * @param item
+     * @return where to write the value of the item
+     */
+    public Target route(Host host, Item item) {
+        int rule = 0;
+        while (rule < prefixes.length && !item.key_.startsWith(prefixes[rule])) {
+            rule++;
+        }
+        return targets[rule][connections.length == 1 ? 0 : backend(byHost ? host.host : LineProtocol.measurement(item))];
+    }
+
+    /**
+     * @return index of the first healthy backend on the ring after the key,
+     * or the owner of the key if none are healthy
+     */
+    private int backend(String key) {
+        int h = mix(key == null ? 0 : key.hashCode());
+        int i = Arrays.binarySearch(ringHashes, h);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        int owner = ringOwners[i % ringOwners.length];
+        for (int n = 0; n < ringOwners.length; n++) {
+            int candidate = ringOwners[(i + n) % ringOwners.length];
+            if (connections[candidate].isHealthy()) {
+                return candidate;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * Find a target by its id, for example one stored in the spill buffer
+     *
+     * @param id as returned by {@link Target#getId()}
+     * @return the target, on the default backend if the backend is no longer
+     * configured
+     */
+    public Target target(String id) {
+        String[] parts = id.split("/", 3);
+        InfluxDBConnection connection = getDefaultConnection();
+        for (InfluxDBConnection c : connections) {
+            if (c.getName().equals(parts[0])) {
+                connection = c;
+            }
+        }
+        if (!connection.getName().equals(parts[0])) {
+            LOG.warn("InfluxDB backend " + parts[0] + " is no longer configured, writing to " + connection.getName() + " instead");
+        }
+        return connection.target(parts.length > 1 ? parts[1] : null, parts.length > 2 ? parts[2] : null);
+    }
+
+    /**
+     * @return the first backend, used for the internal metrics
+     */
+    public InfluxDBConnection getDefaultConnection() {
+        return connections[0];
+    }
+
+    public List<InfluxDBConnection> getConnections() {
+        return Collections.unmodifiableList(Arrays.asList(connections));
+    }
+
+    public void close() {
+        for (InfluxDBConnection c : connections) {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package fi.tkgwf.zri.connection;
+
+/**
+ * A failed InfluxDB write
+ */
+public class InfluxDBWriteException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean retryable;
+
+    public InfluxDBWriteException(String message, boolean retryable) {
+        super(message);
+        this.retryable = retryable;
+    }
+
+    public InfluxDBWriteException(String message, boolean retryable, Throwable cause) {
+        super(message, cause);
+        this.retryable = retryable;
+    }
+
+    /**
+     * @return false if the same write would fail again, for example because
+     * InfluxDB could not parse it
+     */
+    public boolean isRetryable() {
+        return retryable;
+    }
+}
@@ -0,0 +1,264 @@
+package fi.tkgwf.zri.connection;
+
+import fi.tkgwf.zri.bean.zabbix.Host;
+import fi.tkgwf.zri.bean.zabbix.Item;
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.metrics.Metrics;
+import fi.tkgwf.zri.utils.ExpirableCache;
+import fi.tkgwf.zri.utils.LongExpirableCache;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persists the zabbix metadata caches into a local snapshot file, so that a
+ * restarted process starts with warm caches instead of looking everything up
+ * again.
+ *
+ * The file consists of a header followed by length-prefixed records and an
+ * end marker, and is read through a memory mapping. Entries that have expired
+ * since the snapshot was written are still restored, but are due for a refresh
+ * on first use, so they are revalidated in the background by the lookup
+ * threads while the stale value is used. Expired negative entries are dropped.
+ */
+public class MetadataSnapshot implements Runnable {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final int MAGIC = 0x5A524953; // "ZRIS"
+    private static final int VERSION = 1;
+    private static final byte HOST = 'H';
+    private static final byte ITEM = 'I';
+    private static final byte END = 'E';
+    private static final long FIRST_MINUTE_MS = 60 * 1000;
+
+    private final ZabbixConnection zabbix;
+    private final Path file;
+    private final long intervalMs;
+    private volatile double loadSeconds;
+
+    public MetadataSnapshot(ZabbixConnection zabbix) {
+        this.zabbix = zabbix;
+        this.file = Paths.get(Config.get("zabbix.snapshot.file"));
+        this.intervalMs = Math.max(1000, Config.getInt("zabbix.snapshot.interval", 300000));
+        Metrics.gauge("zri_snapshot_load_seconds", "Time taken to restore the metadata snapshot on startup", () -> loadSeconds);
+    }
+
+    /**
+     * Starts writing the snapshot periodically in the background
+     */
+    public void start() {
+        Thread t = new Thread(this, "zabbix-snapshot");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        long started = System.currentTimeMillis();
+        try {
+            Thread.sleep(FIRST_MINUTE_MS);
+            LOG.info("Zabbix API requests during the first minute: " + zabbix.getApiCalls());
+            while (true) {
+                save();
+                Thread.sleep(Math.max(0, intervalMs - (System.currentTimeMillis() - started) % intervalMs));
+            }
+        } catch (InterruptedException ex) {
+            LOG.info("Interrupted. Exiting...", ex);
+        }
+    }
+
+    /**
+     * Restores the caches from the snapshot file, if there is one
+     */
+    public void load() {
+        if (!Files.isRegularFile(file)) {
+            LOG.info("No metadata snapshot at " + file + ", starting with empty caches");
+            return;
+        }
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        int hosts = 0;
+        int items = 0;
+        int stale = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < 17 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.get(buffer.limit() - 1) != END) {
+                LOG.warn("Ignoring incomplete or incompatible metadata snapshot " + file);
+                return;
+            }
+            long savedAt = buffer.getLong();
+            ExpirableCache<String, Host> hostCache = zabbix.getHostCache();
+            LongExpirableCache<Item> itemCache = zabbix.getItemCache();
+            byte type;
+            while ((type = buffer.get()) != END) {
+                long expiresAt = buffer.getLong();
+                if (type == HOST) {
+                    String hostId = readString(buffer);
+                    Host host = null;
+                    if (buffer.get() != 0) {
+                        host = new Host();
+                        host.hostid = hostId;
+                        host.host = readString(buffer);
+                        zabbix.intern(host);
+                    }
+                    stale += restore(hostCache, host == null ? hostId : host.hostid, host, expiresAt, now) ? 0 : 1;
+                    hosts++;
+                } else if (type == ITEM) {
+                    long itemId = buffer.getLong();
+                    Item item = null;
+                    if (buffer.get() != 0) {
+                        item = new Item();
+                        item.itemid = itemId;
+                        item.type = readString(buffer);
+                        item.hostid = readString(buffer);
+                        item.name = readString(buffer);
+                        item.key_ = readString(buffer);
+                        zabbix.intern(item);
+                    }
+                    stale += restore(itemCache, itemId, item, expiresAt, now) ? 0 : 1;
+                    items++;
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+            }
+            loadSeconds = (System.nanoTime() - start) / 1e9;
+            LOG.info("Restored " + items + " items and " + hosts + " hosts (" + stale + " stale) from a metadata snapshot written "
+                    + (now - savedAt) / 1000 + " s ago in " + (long) (loadSeconds * 1000) + " ms");
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Failed to restore the metadata snapshot " + file + ", continuing with what was restored", ex);
+        }
+    }
+
+    /**
+     * @return false if the entry was stale
+     */
+    private static <K, V> boolean restore(ExpirableCache<K, V> cache, K key, V value, long expiresAt, long now) {
+        long ttl = expiresAt - now;
+        if (ttl > 0) {
+            cache.put(key, value, ttl);
+            return true;
+        }
+        if (value != null) {
+            cache.put(key, value, ZabbixConnection.CACHE_DURATION_MS, 0);
+        }
+        return false;
+    }
+
+    private static <V> boolean restore(LongExpirableCache<V> cache, long key, V value, long expiresAt, long now) {
+        long ttl = expiresAt - now;
+        if (ttl > 0) {
+            cache.put(key, value, ttl);
+            return true;
+        }
+        if (value != null) {
+            cache.put(key, value, ZabbixConnection.CACHE_DURATION_MS, 0);
+        }
+        return false;
+    }
+
+    /**
+     * Writes the current cache contents into the snapshot file, replacing the
+     * previous snapshot atomically. The caches are copied a segment at a time,
+     * so lookups aren't blocked while the file is written.
+     */
+    public synchronized void save() {
+        long start = System.nanoTime();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        int[] counts = new int[2];
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            IOException[] error = new IOException[1];
+            zabbix.getHostCache().forEach((hostId, cached) -> {
+                if (error[0] != null) {
+                    return;
+                }
+                try {
+                    Host host = cached.getValue();
+                    out.writeByte(HOST);
+                    out.writeLong(cached.getExpiresAt());
+                    writeString(out, hostId);
+                    out.writeBoolean(host != null);
+                    if (host != null) {
+                        writeString(out, host.host);
+                    }
+                    counts[0]++;
+                } catch (IOException ex) {
+                    error[0] = ex;
+                }
+            });
+            zabbix.getItemCache().forEach((itemId, cached) -> {
+                if (error[0] != null) {
+                    return;
+                }
+                try {
+                    Item item = cached.getValue();
+                    out.writeByte(ITEM);
+                    out.writeLong(cached.getExpiresAt());
+                    out.writeLong(itemId);
+                    out.writeBoolean(item != null);
+                    if (item != null) {
+                        writeString(out, item.type);
+                        writeString(out, item.hostid);
+                        writeString(out, item.name);
+                        writeString(out, item.key_);
+                    }
+                    counts[1]++;
+                } catch (IOException ex) {
+                    error[0] = ex;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            out.writeByte(END);
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException ex) {
+            LOG.warn("Failed to write the metadata snapshot " + tmp, ex);
+            return;
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOG.warn("Failed to replace the metadata snapshot " + file, ex);
+            return;
+        }
+        LOG.debug("Wrote " + counts[1] + " items and " + counts[0] + " hosts to the metadata snapshot in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,382 @@
+package fi.tkgwf.zri.connection;
+
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.metrics.Counter;
+import fi.tkgwf.zri.metrics.Metrics;
+import fi.tkgwf.zri.utils.CircuitBreaker;
+import io.lettuce.core.Consumer;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandTimeoutException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.XReadArgs.StreamOffset;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+public class RedisConnection {
+
+    /**
+     * Atomically takes up to ARGV[1] entries from the head of the list KEYS[1].
+     * Works on any Redis version with scripting, unlike LPOP with count which
+     * requires Redis 6.2.
+     */
+    private static final String POP_BATCH_SCRIPT
+            = "local entries = redis.call('LRANGE', KEYS[1], 0, tonumber(ARGV[1]) - 1)\n"
+            + "if #entries > 0 then\n"
+            + "  redis.call('LTRIM', KEYS[1], #entries, -1)\n"
+            + "end\n"
+            + "return entries";
+
+    /**
+     * Atomically moves up to ARGV[1] entries from the head of the list KEYS[1]
+     * to the tail of the list KEYS[2] and returns them. Equivalent to a batch
+     * of LMOVE calls, which requires Redis 6.2.
+     */
+    private static final String MOVE_BATCH_SCRIPT
+            = "local entries = redis.call('LRANGE', KEYS[1], 0, tonumber(ARGV[1]) - 1)\n"
+            + "if #entries > 0 then\n"
+            + "  redis.call('LTRIM', KEYS[1], #entries, -1)\n"
+            + "  for i = 1, #entries, 1000 do\n"
+            + "    redis.call('RPUSH', KEYS[2], unpack(entries, i, math.min(i + 999, #entries)))\n"
+            + "  end\n"
+            + "end\n"
+            + "return entries";
+
+    /**
+     * Atomically moves every entry of the list KEYS[1] to the head of the list
+     * KEYS[2], keeping their order, and returns the number of entries moved
+     */
+    private static final String RECOVER_SCRIPT
+            = "local entries = redis.call('LRANGE', KEYS[1], 0, -1)\n"
+            + "for i = #entries, 1, -1 do\n"
+            + "  redis.call('LPUSH', KEYS[2], entries[i])\n"
+            + "end\n"
+            + "redis.call('DEL', KEYS[1])\n"
+            + "return #entries";
+
+    /**
+     * Creates the consumer group ARGV[1] reading the stream KEYS[1] from the
+     * beginning, creating the stream if needed. Returns 0 if the group exists
+     * already. MKSTREAM is not exposed by this client version, hence the
+     * script.
+     */
+    private static final String CREATE_GROUP_SCRIPT
+            = "local result = redis.pcall('XGROUP', 'CREATE', KEYS[1], ARGV[1], '0', 'MKSTREAM')\n"
+            + "if type(result) == 'table' and result.err then\n"
+            + "  if string.find(result.err, 'BUSYGROUP') then\n"
+            + "    return 0\n"
+            + "  end\n"
+            + "  return result\n"
+            + "end\n"
+            + "return 1";
+
+    private final RedisClient redis;
+    private final StatefulRedisConnection<String, String> connection;
+    private final Counter roundTrips = Metrics.counter("zri_redis_pops_total", "Batch pop round trips to redis");
+    private final Counter entriesRead = Metrics.counter("zri_redis_popped_entries_total", "Entries popped from redis");
+    private final Map<String, String> scriptShas = new ConcurrentHashMap<>();
+    private final CircuitBreaker breaker = new CircuitBreaker("redis");
+    private final Map<String, StatefulRedisConnection<String, String>> blockingConnections = new HashMap<>(); // guarded by this
+
+    public RedisConnection() {
+        redis = RedisClient.create("redis://" + Config.get("redis.host") + ":" + Config.get("redis.port"));
+        connection = redis.connect();
+        Metrics.gauge("zri_redis_entries_per_pop", "Average number of entries received per batch pop round trip", this::getEntriesPerRoundTrip);
+    }
+
+    /**
+     * Pops up to maxEntries entries from the head of the queue in a single
+     * round trip
+     *
+     * @param queue
+     * @param maxEntries
+     * @return the entries in queue order, empty if the queue was empty
+     */
+    public List<String> popBatch(String queue, int maxEntries) {
+        List<String> entries = guarded(() -> script(POP_BATCH_SCRIPT, ScriptOutputType.MULTI, new String[]{queue}, String.valueOf(maxEntries)));
+        roundTrips.inc();
+        entriesRead.add(entries.size());
+        return entries;
+    }
+
+    /**
+     * Moves up to maxEntries entries from the head of the queue to the tail of
+     * the processing list in a single round trip
+     *
+     * @param queue
+     * @param processing
+     * @param maxEntries
+     * @return the moved entries in queue order, empty if the queue was empty
+     */
+    public List<String> moveBatch(String queue, String processing, int maxEntries) {
+        List<String> entries = guarded(() -> script(MOVE_BATCH_SCRIPT, ScriptOutputType.MULTI, new String[]{queue, processing}, String.valueOf(maxEntries)));
+        roundTrips.inc();
+        entriesRead.add(entries.size());
+        return entries;
+    }
+
+    /**
+     * Pops a single entry from the head of the queue, waiting for one to
+     * arrive if the queue is empty. Uses a dedicated connection per queue so
+     * that the blocked connection doesn't delay other commands, or waiting on
+     * another queue.
+     *
+     * @param queue
+     * @param timeoutSeconds max time to wait, redis before 6.0 only supports
+     * whole seconds
+     * @return the entry, or null if none arrived in time
+     */
+    public String blockingPop(String queue, long timeoutSeconds) {
+        KeyValue<String, String> entry = guarded(() -> blockingConnection(queue).sync().blpop(timeoutSeconds, queue));
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Creates a stream consumer group unless it exists already
+     *
+     * @param stream
+     * @param group
+     * @return true if the group was created
+     */
+    public boolean createGroup(String stream, String group) {
+        Long created = script(CREATE_GROUP_SCRIPT, ScriptOutputType.INTEGER, new String[]{stream}, group);
+        return created == 1;
+    }
+
+    /**
+     * Reads new messages for a consumer of a group, waiting for them to
+     * arrive if there are none. Uses the dedicated blocking connection of the
+     * stream.
+     *
+     * @param consumer
+     * @param stream
+     * @param count max number of messages
+     * @param blockMs max time to wait
+     * @return the messages, empty if none arrived in time
+     */
+    public List<StreamMessage<String, String>> readGroup(Consumer<String> consumer, String stream, int count, long blockMs) {
+        @SuppressWarnings("unchecked") // xreadgroup takes the offsets as generic varargs
+        StreamOffset<String>[] offsets = (StreamOffset<String>[]) new StreamOffset<?>[]{StreamOffset.lastConsumed(stream)};
+        List<StreamMessage<String, String>> messages = guarded(() -> blockingConnection(stream).sync().xreadgroup(consumer, XReadArgs.Builder.count(count).block(blockMs), offsets));
+        roundTrips.inc();
+        entriesRead.add(messages.size());
+        return messages;
+    }
+
+    /**
+     * Reads messages that were delivered to the consumer earlier but not
+     * acknowledged, for example before a restart
+     *
+     * @param consumer
+     * @param stream
+     * @param afterId only messages with a greater id are returned
+     * @param count max number of messages
+     * @return the messages, empty if there are no more. Messages deleted from
+     * the stream since have an empty body.
+     */
+    public List<StreamMessage<String, String>> readOwnPending(Consumer<String> consumer, String stream, String afterId, int count) {
+        @SuppressWarnings("unchecked") // xreadgroup takes the offsets as generic varargs
+        StreamOffset<String>[] offsets = (StreamOffset<String>[]) new StreamOffset<?>[]{StreamOffset.from(stream, afterId)};
+        List<StreamMessage<String, String>> messages = guarded(() -> connection.sync().xreadgroup(consumer, XReadArgs.Builder.count(count), offsets));
+        roundTrips.inc();
+        entriesRead.add(messages.size());
+        return messages;
+    }
+
+    /**
+     * Takes over messages that other consumers of the group have not
+     * acknowledged within minIdleMs
+     *
+     * @param consumer the new owner
+     * @param stream
+     * @param minIdleMs
+     * @param count max number of pending messages to inspect
+     * @return the claimed messages
+     */
+    public List<StreamMessage<String, String>> claimIdle(Consumer<String> consumer, String stream, long minIdleMs, int count) {
+        return guarded(() -> {
+            RedisCommands<String, String> sync = connection.sync();
+            // XAUTOCLAIM requires Redis 6.2, so look the candidates up with XPENDING
+            List<String> ids = new ArrayList<>();
+            for (Object o : sync.xpending(stream, consumer.getGroup(), Range.create("-", "+"), Limit.from(count))) {
+                List<?> pending = (List<?>) o; // id, consumer, idle time, delivery count
+                if (!consumer.getName().equals(pending.get(1)) && ((Long) pending.get(2)) >= minIdleMs) {
+                    ids.add((String) pending.get(0));
+                }
+            }
+            if (ids.isEmpty()) {
+                return Collections.<StreamMessage<String, String>>emptyList();
+            }
+            return sync.xclaim(stream, consumer, minIdleMs, ids.toArray(new String[0]));
+        });
+    }
+
+    /**
+     * @param stream
+     * @param group
+     * @return number of messages delivered to the consumers of the group but
+     * not yet acknowledged
+     */
+    public long pendingCount(String stream, String group) {
+        List<Object> summary = connection.sync().xpending(stream, group);
+        return summary.isEmpty() ? 0 : (Long) summary.get(0);
+    }
+
+    /**
+     * Acknowledges messages of a group in a single round trip
+     *
+     * @param stream
+     * @param group
+     * @param ids
+     */
+    public void ack(String stream, String group, List<String> ids) {
+        if (!ids.isEmpty()) {
+            connection.sync().xack(stream, group, ids.toArray(new String[0]));
+        }
+    }
+
+    /**
+     * Appends the values to the stream as new messages, each with a single
+     * field
+     *
+     * @param stream
+     * @param field
+     * @param values
+     */
+    public void add(String stream, String field, List<String> values) {
+        // async commands are pipelined on the connection, so this takes a single round trip
+        List<RedisFuture<String>> futures = new ArrayList<>(values.size());
+        for (String value : values) {
+            futures.add(connection.async().xadd(stream, field, value));
+        }
+        if (!LettuceFutures.awaitAll(connection.getTimeout(), futures.toArray(new RedisFuture<?>[0]))) {
+            throw new RedisCommandTimeoutException("Timed out adding " + values.size() + " messages to " + stream);
+        }
+    }
+
+    /**
+     * Removes entries from the head of a list
+     *
+     * @param list
+     * @param count
+     */
+    public void trimHead(String list, long count) {
+        connection.sync().ltrim(list, count, -1);
+    }
+
+    /**
+     * Moves every entry of the processing list back to the head of the queue
+     *
+     * @param processing
+     * @param queue
+     * @return number of entries moved
+     */
+    public long recover(String processing, String queue) {
+        Long moved = script(RECOVER_SCRIPT, ScriptOutputType.INTEGER, new String[]{processing, queue});
+        return moved;
+    }
+
+    /**
+     * Appends the entries to the tail of the queue, preserving their order
+     *
+     * @param queue
+     * @param entries
+     */
+    public void pushBack(String queue, List<String> entries) {
+        if (!entries.isEmpty()) {
+            connection.sync().rpush(queue, entries.toArray(new String[0]));
+        }
+    }
+
+    /**
+     * Prepends the entries to the head of the queue in a single command,
+     * preserving their order, so that they are read again before the entries
+     * that are already waiting
+     *
+     * @param queue
+     * @param entries
+     */
+    public void pushFront(String queue, List<String> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        String[] values = new String[entries.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = entries.get(values.length - 1 - i); // each value is pushed in front of the previous one
+        }
+        connection.sync().lpush(queue, values);
+    }
+
+    /**
+     * @param queue
+     * @return number of entries in the queue
+     */
+    public long length(String queue) {
+        return connection.sync().llen(queue);
+    }
+
+    /**
+     * @return average number of entries received per pop round trip since
+     * startup
+     */
+    public double getEntriesPerRoundTrip() {
+        long trips = roundTrips.get();
+        return trips == 0 ? 0 : entriesRead.get() / (double) trips;
+    }
+
+    private synchronized StatefulRedisConnection<String, String> blockingConnection(String queue) {
+        return blockingConnections.computeIfAbsent(queue, q -> redis.connect());
+    }
+
+    /**
+     * Runs a read command through the circuit breaker, failing fast while
+     * redis has been failing
+     */
+    private <T> T guarded(Supplier<T> command) {
+        if (!breaker.allowRequest()) {
+            throw new IllegalStateException("Redis unavailable, not reading until it recovers");
+        }
+        try {
+            T result = command.get();
+            breaker.success();
+            return result;
+        } catch (RuntimeException ex) {
+            breaker.failure();
+            throw ex;
+        }
+    }
+
+    private <T> T script(String script, ScriptOutputType type, String[] keys, String... args) {
+        RedisCommands<String, String> sync = connection.sync();
+        String sha = scriptShas.computeIfAbsent(script, sync::scriptLoad);
+        try {
+            return sync.evalsha(sha, type, keys, args);
+        } catch (RedisNoScriptException ex) {
+            // script cache was flushed, eg. redis was restarted
+            scriptShas.remove(script);
+            return sync.eval(script, type, keys, args);
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            blockingConnections.values().forEach(StatefulRedisConnection::close);
+        }
+        connection.close();
+        redis.shutdown();
+    }
+}
@@ -0,0 +1,28 @@
+package fi.tkgwf.zri.connection;
+
+import fi.tkgwf.zri.bean.zabbix.ApiError;
+import java.io.IOException;
+
+/**
+ * An error returned by the zabbix API
+ */
+public class ZabbixApiException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean sessionExpired;
+
+    public ZabbixApiException(String method, ApiError error) {
+        super(method + " failed: " + error.message + " " + error.data + " (" + error.code + ")");
+        String text = (error.message + " " + error.data).toLowerCase();
+        sessionExpired = text.contains("re-login") || text.contains("session terminated") || text.contains("not authorised") || text.contains("not authorized");
+    }
+
+    /**
+     * @return true if the request failed because the auth token is no longer
+     * valid
+     */
+    public boolean isSessionExpired() {
+        return sessionExpired;
+    }
+}
@@ -1,110 +1,490 @@
 package fi.tkgwf.zri.connection;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import fi.tkgwf.zri.bean.zabbix.ApiError;
 import fi.tkgwf.zri.bean.zabbix.ApiRequest;
-import fi.tkgwf.zri.bean.zabbix.AuthResponse;
 import fi.tkgwf.zri.bean.zabbix.Host;
-import fi.tkgwf.zri.bean.zabbix.HostResponse;
 import fi.tkgwf.zri.bean.zabbix.Item;
-import fi.tkgwf.zri.bean.zabbix.ItemResponse;
 import fi.tkgwf.zri.config.Config;
-import fi.tkgwf.zri.utils.ExpirableMap;
+import fi.tkgwf.zri.metrics.Counter;
+import fi.tkgwf.zri.metrics.Histogram;
+import fi.tkgwf.zri.metrics.Metrics;
+import fi.tkgwf.zri.utils.CacheStats;
+import fi.tkgwf.zri.utils.CircuitBreaker;
+import fi.tkgwf.zri.utils.CoalescingLoader;
+import fi.tkgwf.zri.utils.ExpirableCache;
+import fi.tkgwf.zri.utils.ExpirableCache.CachedValue;
+import fi.tkgwf.zri.utils.LongExpirableCache;
+import fi.tkgwf.zri.utils.StringPool;
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
+import okhttp3.Response;
 import okhttp3.ResponseBody;
-import org.apache.commons.collections4.CollectionUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+/**
+ * Non-blocking zabbix API client with cached and coalesced metadata lookups.
+ *
+ * Requests are sent asynchronously over a shared connection pool and the
+ * responses are decoded as they are read, so that large item.get results are
+ * never held in memory as a whole. When the session has expired, it is renewed
+ * once for all requests that ran into it and the requests are sent again.
+ */
 public class ZabbixConnection {
 
     private static final Logger LOG = LogManager.getLogger();
 
     private static final MediaType MEDIA_TYPE = MediaType.parse("application/json-rpc");
-    private static final long CACHE_DURATION_MS = 10 * 60 * 1000;
-    private static final long CACHE_NULL_DURATION_MS = 30 * 60 * 1000;
+    private static final Gson GSON = new Gson();
+    static final long CACHE_DURATION_MS = 10 * 60 * 1000;
+    static final long CACHE_NULL_DURATION_MS = 30 * 60 * 1000;
+    private static final double CACHE_DURATION_JITTER = 0.1;
+    private static final List<String> ITEM_OUTPUT = Arrays.asList("itemid", "type", "hostid", "name", "key_");
+    private static final List<String> HOST_OUTPUT = Arrays.asList("hostid", "host");
+    private static final List<Integer> NUMERIC_VALUE_TYPES = Arrays.asList(0, 3); // numeric float and numeric unsigned
+    static final long CACHE_REFRESH_CYCLE_MS = CACHE_DURATION_MS / 2;
+    private static final Item MISSING_ITEM = new Item(); // returned by the item cache for keys it doesn't have
 
     private final String apiUrl = Config.get("zabbix.url") + "/api_jsonrpc.php";
-    private final OkHttpClient client = new OkHttpClient();
-    private final ExpirableMap<String, Item> itemCache = new ExpirableMap<>();
-    private final ExpirableMap<String, Host> hostCache = new ExpirableMap<>();
+    private final OkHttpClient client;
+    private final LongExpirableCache<Item> itemCache = new LongExpirableCache<>(Config.getInt("zabbix.cache.items.max", 2000000), CACHE_DURATION_JITTER);
+    private final ExpirableCache<String, Host> hostCache = new ExpirableCache<>(Config.getInt("zabbix.cache.hosts.max", 100000), CACHE_DURATION_JITTER);
+    private final CoalescingLoader<Long, Item> itemLoader;
+    private final CoalescingLoader<String, Host> hostLoader;
+    private final LongConsumer refreshItem;
+    private final StringPool strings = new StringPool(Config.getInt("zabbix.cache.strings.max", 1000000));
+    private final CircuitBreaker breaker = new CircuitBreaker("zabbix");
+    private final Counter apiCalls = Metrics.counter("zri_zabbix_api_requests_total", "Zabbix API requests made");
+    private final Map<String, Histogram> requestSeconds = new ConcurrentHashMap<>(); // by API method
+    private final Map<String, Counter> requestErrors = new ConcurrentHashMap<>();
 
-    private String auth;
+    private final Object sessionLock = new Object();
+    private CompletableFuture<String> session; // auth token, guarded by sessionLock
 
-    private void login() throws IOException {
+    public ZabbixConnection() {
+        int concurrency = Math.max(1, Config.getInt("zabbix.api.concurrency", 8));
+        long timeoutMs = Config.getInt("zabbix.timeout", 30000);
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(concurrency);
+        dispatcher.setMaxRequestsPerHost(concurrency);
+        client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(concurrency, 5, TimeUnit.MINUTES))
+                .connectTimeout(Duration.ofMillis(timeoutMs))
+                .readTimeout(Duration.ofMillis(timeoutMs))
+                .writeTimeout(Duration.ofMillis(timeoutMs))
+                .build();
+        long window = Config.getInt("zabbix.lookup.window", 50);
+        int batchSize = Math.max(1, Config.getInt("zabbix.lookup.batch", 1000));
+        int maxInFlight = Math.max(1, Config.getInt("zabbix.lookup.threads", 2));
+        itemLoader = new CoalescingLoader<>("item", this::loadItems, window, batchSize, maxInFlight);
+        hostLoader = new CoalescingLoader<>("host", this::loadHosts, window, batchSize, maxInFlight);
+        refreshItem = itemLoader::get;
+        registerCacheMetrics("item", itemCache);
+        registerCacheMetrics("host", hostCache);
+        Metrics.gauge("zri_cache_strings", "Distinct strings shared by the cached zabbix metadata", strings::size);
+    }
+
+    private static void registerCacheMetrics(String name, CacheStats cache) {
+        String help = "Zabbix metadata cache lookups";
+        Metrics.counterFunction("zri_cache_requests_total", help, cache::getHits, "cache", name, "result", "hit");
+        Metrics.counterFunction("zri_cache_requests_total", help, cache::getNegativeHits, "cache", name, "result", "negative_hit");
+        Metrics.counterFunction("zri_cache_requests_total", help, cache::getMisses, "cache", name, "result", "miss");
+        Metrics.counterFunction("zri_cache_evictions_total", "Zabbix metadata cache entries evicted because the cache was full", cache::getEvictions, "cache", name);
+        Metrics.counterFunction("zri_cache_expirations_total", "Zabbix metadata cache entries expired", cache::getExpirations, "cache", name);
+        Metrics.gauge("zri_cache_size", "Zabbix metadata cache entries", cache::size, "cache", name);
+    }
+
+    /**
+     * @return the current session, logging in if there is none
+     */
+    private CompletableFuture<String> session() {
+        synchronized (sessionLock) {
+            if (session == null || session.isCompletedExceptionally()) {
+                session = login();
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Replace an expired session, unless another request already did
+     *
+     * @param expired the auth token that was rejected
+     * @return the new session
+     */
+    private CompletableFuture<String> renewSession(String expired) {
+        synchronized (sessionLock) {
+            if (session != null && (!session.isDone() || !session.isCompletedExceptionally() && !expired.equals(session.join()))) {
+                return session;
+            }
+            LOG.info("Zabbix API session expired, logging in again");
+            session = login();
+            return session;
+        }
+    }
+
+    private CompletableFuture<String> login() {
         ApiRequest request = new ApiRequest();
         request.auth = null;
         request.method = "user.login";
         request.params.put("user", Config.get("zabbix.user"));
         request.params.put("password", Config.get("zabbix.password"));
+        CompletableFuture<String> result = new CompletableFuture<>();
+        send(request, JsonReader::nextString, result);
+        return result;
+    }
 
-        ResponseBody body = client.newCall(createRequest(request)).execute().body();
-        if (body == null) {
-            throw new IllegalStateException("Null response body from login");
+    /**
+     * Get an item by its id. Cache misses are coalesced with other concurrent
+     * misses into a single item.get call, which also resolves the hosts of the
+     * items.
+     *
+     * @param itemId
+     * @return a future completed with the item, or null if it does not exist.
+     * Already completed if the item was cached.
+     */
+    public CompletableFuture<Item> getItem(long itemId) {
+        Item item = itemCache.get(itemId, MISSING_ITEM, refreshItem); // a refresh ahead of expiry uses the cached value meanwhile
+        if (item == MISSING_ITEM) {
+            return itemLoader.get(itemId);
         }
-        auth = new Gson().fromJson(body.charStream(), AuthResponse.class).result;
+        return CompletableFuture.completedFuture(item);
     }
 
-    public Item getItem(String itemId) throws IOException {
-        Item cached = itemCache.get(itemId);
-        if (itemCache.containsKey(itemId)) {
-            return cached;
+    /**
+     * Get a host by its id. Cache misses are coalesced with other concurrent
+     * misses into a single host.get call.
+     *
+     * @param hostId
+     * @return a future completed with the host, or null if it does not exist.
+     * Already completed if the host was cached.
+     */
+    public CompletableFuture<Host> getHost(String hostId) {
+        CachedValue<Host> cached = hostCache.get(hostId);
+        if (cached == null) {
+            return hostLoader.get(hostId);
         }
-        if (auth == null) {
-            login();
+        if (cached.claimRefresh()) {
+            hostLoader.get(hostId); // refresh ahead of expiry, the cached value is used meanwhile
         }
+        return CompletableFuture.completedFuture(cached.getValue());
+    }
+
+    /**
+     * @return false if the zabbix API has been failing and lookups currently
+     * fail fast
+     */
+    public boolean isAvailable() {
+        return breaker.isClosed();
+    }
+
+    /**
+     * @return number of API requests made since startup, including failed
+     * ones
+     */
+    public long getApiCalls() {
+        return apiCalls.get();
+    }
+
+    public LongExpirableCache<Item> getItemCache() {
+        return itemCache;
+    }
+
+    public ExpirableCache<String, Host> getHostCache() {
+        return hostCache;
+    }
+
+    public void close() {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    private CompletableFuture<Map<Long, Item>> loadItems(List<Long> itemIds) {
         ApiRequest request = new ApiRequest();
-        request.auth = auth;
         request.method = "item.get";
-        request.params.put("itemids", itemId);
+        request.params.put("itemids", itemIds);
+        request.params.put("output", ITEM_OUTPUT);
+        request.params.put("selectHosts", HOST_OUTPUT);
+        Map<Long, Item> items = new HashMap<>();
+        return call(request, arrayOf(Item.class, item -> {
+            intern(item);
+            if (item.hosts != null) {
+                cacheHosts(item.hosts);
+                item.hosts = null; // no need to keep these around in the cache
+            }
+            items.put(item.itemid, item);
+        })).thenApply(result -> {
+            for (Long itemId : itemIds) {
+                Item item = items.get(itemId);
+                itemCache.put(itemId, item, item == null ? CACHE_NULL_DURATION_MS : CACHE_DURATION_MS);
+            }
+            LOG.debug("Loaded " + items.size() + "/" + itemIds.size() + " items");
+            return items;
+        });
+    }
 
-        ResponseBody body = client.newCall(createRequest(request)).execute().body();
-        if (body == null) {
-            throw new IllegalStateException("Null response body from item.get with id " + itemId);
+    private CompletableFuture<Map<String, Host>> loadHosts(List<String> hostIds) {
+        ApiRequest request = new ApiRequest();
+        request.method = "host.get";
+        request.params.put("hostids", hostIds);
+        request.params.put("output", HOST_OUTPUT);
+        Map<String, Host> hosts = new HashMap<>();
+        return call(request, arrayOf(Host.class, host -> hosts.put(host.hostid, host))).thenApply(result -> {
+            cacheHosts(hosts.values());
+            for (String hostId : hostIds) {
+                if (!hosts.containsKey(hostId)) {
+                    hostCache.put(hostId, null, CACHE_NULL_DURATION_MS);
+                }
+            }
+            LOG.debug("Loaded " + hosts.size() + "/" + hostIds.size() + " hosts");
+            return hosts;
+        });
+    }
+
+    /**
+     * Fetch every host from zabbix and store them in the cache
+     *
+     * @return ids of all hosts
+     * @throws IOException
+     */
+    List<String> syncHosts() throws IOException {
+        ApiRequest request = new ApiRequest();
+        request.method = "host.get";
+        request.params.put("output", HOST_OUTPUT);
+        List<String> hostIds = new ArrayList<>();
+        await(call(request, arrayOf(Host.class, host -> {
+            cacheHosts(Collections.singletonList(host));
+            hostIds.add(host.hostid);
+        })));
+        return hostIds;
+    }
+
+    /**
+     * Fetch all numeric items of the given hosts from zabbix and store them in
+     * the cache. Items whose metadata has not changed keep their cached
+     * instance and only get their expiry extended.
+     *
+     * @param hostIds
+     * @return number of items that were new or changed
+     * @throws IOException
+     */
+    int syncItems(List<String> hostIds) throws IOException {
+        ApiRequest request = new ApiRequest();
+        request.method = "item.get";
+        request.params.put("hostids", hostIds);
+        request.params.put("output", ITEM_OUTPUT);
+        request.params.put("filter", Collections.singletonMap("value_type", NUMERIC_VALUE_TYPES));
+        AtomicInteger changed = new AtomicInteger();
+        await(call(request, arrayOf(Item.class, item -> {
+            intern(item);
+            CachedValue<Item> cached = itemCache.peek(item.itemid);
+            if (cached != null && cached.getValue() != null && sameMetadata(cached.getValue(), item)) {
+                item = cached.getValue();
+            } else {
+                changed.incrementAndGet();
+            }
+            itemCache.put(item.itemid, item, CACHE_DURATION_MS);
+        })));
+        return changed.get();
+    }
+
+    private void cacheHosts(Iterable<Host> hosts) {
+        for (Host host : hosts) {
+            intern(host);
+            CachedValue<Host> cached = hostCache.peek(host.hostid);
+            boolean unchanged = cached != null && cached.getValue() != null && Objects.equals(cached.getValue().host, host.host);
+            hostCache.put(host.hostid, unchanged ? cached.getValue() : host, CACHE_DURATION_MS);
         }
-        List<Item> result = new Gson().fromJson(body.charStream(), ItemResponse.class).result;
-        if (CollectionUtils.isEmpty(result)) {
-            itemCache.put(itemId, null, System.currentTimeMillis() + CACHE_NULL_DURATION_MS);
-            return null;
-        } else {
-            Item item = result.get(0);
-            itemCache.put(itemId, item, System.currentTimeMillis() + CACHE_DURATION_MS);
-            return item;
+    }
+
+    /**
+     * Replace the strings of an item with equal ones shared with other items
+     *
+     * @param item
+     */
+    void intern(Item item) {
+        item.type = strings.intern(item.type);
+        item.hostid = strings.intern(item.hostid);
+        item.name = strings.intern(item.name);
+        item.key_ = strings.intern(item.key_);
+    }
+
+    void intern(Host host) {
+        host.hostid = strings.intern(host.hostid);
+        host.host = strings.intern(host.host);
+    }
+
+    private boolean sameMetadata(Item a, Item b) {
+        return Objects.equals(a.hostid, b.hostid) && Objects.equals(a.name, b.name) && Objects.equals(a.key_, b.key_) && Objects.equals(a.type, b.type);
+    }
+
+    /**
+     * Call the API with the current session, renewing it once if it has
+     * expired
+     *
+     * @param request
+     * @param resultReader decodes the result
+     * @return a future completed with the decoded result
+     */
+    private <T> CompletableFuture<T> call(ApiRequest request, ResultReader<T> resultReader) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (!breaker.allowRequest()) {
+            result.completeExceptionally(new IOException("Zabbix API unavailable, not calling " + request.method + " until it recovers"));
+            return result;
         }
+        long start = System.nanoTime();
+        session().thenCompose(auth -> {
+            request.auth = auth;
+            CompletableFuture<T> attempt = new CompletableFuture<>();
+            send(request, resultReader, attempt);
+            return attempt.handle((value, ex) -> {
+                Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+                if (cause instanceof ZabbixApiException && ((ZabbixApiException) cause).isSessionExpired()) {
+                    return renewSession(auth).thenCompose(renewed -> {
+                        request.auth = renewed;
+                        CompletableFuture<T> retry = new CompletableFuture<>();
+                        send(request, resultReader, retry);
+                        return retry;
+                    });
+                }
+                return attempt;
+            }).thenCompose(f -> f);
+        }).whenComplete((value, ex) -> {
+            requestSeconds(request.method).observeSince(start);
+            if (ex == null) {
+                breaker.success();
+                result.complete(value);
+                return;
+            }
+            breaker.failure();
+            requestErrors(request.method).inc();
+            result.completeExceptionally(ex instanceof CompletionException ? ex.getCause() : ex);
+        });
+        return result;
+    }
+
+    private Histogram requestSeconds(String method) {
+        Histogram histogram = requestSeconds.get(method);
+        return histogram != null ? histogram
+                : requestSeconds.computeIfAbsent(method, m -> Metrics.histogram("zri_zabbix_api_request_seconds", "Zabbix API request latency", "method", m));
+    }
+
+    private Counter requestErrors(String method) {
+        Counter counter = requestErrors.get(method);
+        return counter != null ? counter
+                : requestErrors.computeIfAbsent(method, m -> Metrics.counter("zri_zabbix_api_errors_total", "Failed zabbix API requests", "method", m));
+    }
+
+    /**
+     * Send a single API request and decode the response as it is read
+     */
+    private <T> void send(ApiRequest request, ResultReader<T> resultReader, CompletableFuture<T> result) {
+        apiCalls.inc();
+        client.newCall(createRequest(request)).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException ex) {
+                result.completeExceptionally(ex);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (ResponseBody body = response.body()) {
+                    if (!response.isSuccessful() || body == null) {
+                        throw new IOException(request.method + " failed with HTTP " + response.code());
+                    }
+                    result.complete(readResponse(new JsonReader(body.charStream()), request.method, resultReader));
+                } catch (IOException | RuntimeException ex) {
+                    result.completeExceptionally(ex);
+                }
+            }
+        });
     }
 
-    public Host getHost(String hostId) throws IOException {
-        Host cached = hostCache.get(hostId);
-        if (cached != null) {
-            return cached;
+    private static <T> T readResponse(JsonReader reader, String method, ResultReader<T> resultReader) throws IOException {
+        T result = null;
+        ApiError error = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "result":
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                    } else {
+                        result = resultReader.read(reader);
+                    }
+                    break;
+                case "error":
+                    error = GSON.fromJson(reader, ApiError.class);
+                    break;
+                default:
+                    reader.skipValue();
+            }
         }
-        if (auth == null) {
-            login();
+        reader.endObject();
+        if (error != null) {
+            throw new ZabbixApiException(method, error);
         }
-        ApiRequest request = new ApiRequest();
-        request.auth = auth;
-        request.method = "host.get";
-        request.params.put("hostids", hostId);
+        return result;
+    }
 
-        ResponseBody body = client.newCall(createRequest(request)).execute().body();
-        if (body == null) {
-            throw new IllegalStateException("Null response body from host.get with id " + hostId);
-        }
-        List<Host> result = new Gson().fromJson(body.charStream(), HostResponse.class).result;
-        if (CollectionUtils.isEmpty(result)) {
+    /**
+     * @return a reader passing each element of an array result to the
+     * consumer as soon as it has been decoded
+     */
+    private static <E> ResultReader<Void> arrayOf(Class<E> type, Consumer<E> consumer) {
+        return reader -> {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                consumer.accept(GSON.fromJson(reader, type));
+            }
+            reader.endArray();
             return null;
-        } else {
-            Host item = result.get(0);
-            hostCache.put(hostId, item, System.currentTimeMillis() + CACHE_DURATION_MS);
-            return item;
+        };
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw ex;
         }
     }
 
     private Request createRequest(ApiRequest apiRequest) {
-        return new Request.Builder().url(apiUrl).addHeader("Content-Type", "application/json-rpc").addHeader("cache-control", "no-cache").post(RequestBody.create(new Gson().toJson(apiRequest), MEDIA_TYPE)).build();
+        return new Request.Builder().url(apiUrl).addHeader("Content-Type", "application/json-rpc").addHeader("cache-control", "no-cache").post(RequestBody.create(GSON.toJson(apiRequest), MEDIA_TYPE)).build();
+    }
+
+    private interface ResultReader<T> {
+
+        T read(JsonReader reader) throws IOException;
     }
 }
@@ -0,0 +1,87 @@
+package fi.tkgwf.zri.connection;
+
+import fi.tkgwf.zri.config.Config;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Preloads the zabbix metadata caches in the background and keeps them fresh.
+ *
+ * After the initial preload the hosts are split into slices and one slice is
+ * refreshed every sync interval, so that each cached item is refreshed well
+ * before it expires and the whole cache never expires at once. Lookups of
+ * anything not yet synced fall back to on-demand API calls.
+ */
+public class ZabbixSync implements Runnable {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private final ZabbixConnection zabbix;
+    private final long intervalMs;
+    private final int hostsPerCall;
+
+    public ZabbixSync(ZabbixConnection zabbix) {
+        this.zabbix = zabbix;
+        this.intervalMs = Math.max(1000, Config.getInt("zabbix.sync.interval", 30000));
+        this.hostsPerCall = Math.max(1, Config.getInt("zabbix.preload.hosts.per.call", 100));
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "zabbix-sync");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!preload()) {
+                Thread.sleep(intervalMs);
+            }
+            int slices = (int) Math.max(1, ZabbixConnection.CACHE_REFRESH_CYCLE_MS / intervalMs);
+            List<String> hostIds = Collections.emptyList();
+            int slice = 0;
+            while (true) {
+                Thread.sleep(intervalMs);
+                try {
+                    if (slice == 0) {
+                        hostIds = zabbix.syncHosts();
+                    }
+                    int from = (int) ((long) hostIds.size() * slice / slices);
+                    int to = (int) ((long) hostIds.size() * (slice + 1) / slices);
+                    int changed = syncItems(hostIds.subList(from, to));
+                    LOG.debug("Synced items of " + (to - from) + " hosts, " + changed + " new or changed");
+                    slice = (slice + 1) % slices;
+                } catch (IOException | RuntimeException ex) {
+                    LOG.warn("Failed to sync zabbix metadata, retrying later", ex);
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOG.info("Interrupted. Exiting...", ex);
+        }
+    }
+
+    private boolean preload() {
+        try {
+            long start = System.currentTimeMillis();
+            List<String> hostIds = zabbix.syncHosts();
+            int items = syncItems(hostIds);
+            LOG.info("Preloaded " + items + " items of " + hostIds.size() + " hosts in " + (System.currentTimeMillis() - start) + " ms");
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Failed to preload zabbix metadata, retrying later", ex);
+            return false;
+        }
+    }
+
+    private int syncItems(List<String> hostIds) throws IOException {
+        int changed = 0;
+        for (int i = 0; i < hostIds.size(); i += hostsPerCall) {
+            changed += zabbix.syncItems(hostIds.subList(i, Math.min(hostIds.size(), i + hostsPerCall)));
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,57 @@
+package fi.tkgwf.zri.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in seconds with fixed buckets
+ */
+public class Histogram {
+
+    static final double[] BUCKETS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+        1, 2.5, 5, 10, 30, 60, 300, 900, 3600
+    };
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Histogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void observe(double seconds) {
+        int i = 0;
+        while (i < BUCKETS.length && seconds > BUCKETS[i]) {
+            i++;
+        }
+        counts[i].increment();
+        sum.add(seconds);
+    }
+
+    /**
+     * Observe the time elapsed since the given {@link System#nanoTime()}
+     *
+     * @param startNanos
+     */
+    public void observeSince(long startNanos) {
+        observe((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    /**
+     * @return non-cumulative count of each bucket, the last one being +Inf
+     */
+    long[] getCounts() {
+        long[] result = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            result[i] = counts[i].sum();
+        }
+        return result;
+    }
+
+    double getSum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,47 @@
+package fi.tkgwf.zri.metrics;
+
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.connection.InfluxDBConnection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Periodically writes the metrics of the exporter itself into InfluxDB
+ */
+public class InfluxDBMetricsReporter implements Runnable {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private final InfluxDBConnection influx;
+    private final long intervalMs;
+
+    public InfluxDBMetricsReporter(InfluxDBConnection influx) {
+        this.influx = influx;
+        this.intervalMs = Math.max(1000, Config.getInt("metrics.influxdb.interval", 60000));
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "metrics-influxdb");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        StringBuilder sb = new StringBuilder(16384);
+        try {
+            while (true) {
+                Thread.sleep(intervalMs);
+                sb.setLength(0);
+                Metrics.writeLineProtocol(sb, System.currentTimeMillis() * 1_000_000);
+                try {
+                    influx.write(sb);
+                } catch (RuntimeException ex) {
+                    LOG.warn("Failed to write metrics to InfluxDB", ex);
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOG.info("Interrupted. Exiting...", ex);
+        }
+    }
+}
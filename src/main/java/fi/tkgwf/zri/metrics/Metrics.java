@@ -0,0 +1,249 @@
+package fi.tkgwf.zri.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of the application metrics.
+ *
+ * Metrics are identified by a name and optional labels given as alternating
+ * key and value arguments. Registering the same name and labels again returns
+ * the existing metric. Counters and histograms are meant to be looked up once
+ * and kept in a field, updating them is then cheap enough for the hot path.
+ * Gauges are read after the registry has been copied and unlocked, so a gauge
+ * that is slow to read, such as a redis queue length, doesn't hold up the
+ * registration of other metrics.
+ */
+public abstract class Metrics {
+
+    private static final Map<String, Family> FAMILIES = new LinkedHashMap<>();
+
+    /**
+     * Get or create a counter
+     *
+     * @param name
+     * @param help
+     * @param labels alternating label keys and values
+     * @return the counter
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, Type.COUNTER, labels, new Counter());
+    }
+
+    /**
+     * Get or create a histogram of durations in seconds
+     *
+     * @param name
+     * @param help
+     * @param labels alternating label keys and values
+     * @return the histogram
+     */
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) register(name, help, Type.HISTOGRAM, labels, new Histogram());
+    }
+
+    /**
+     * Register a gauge whose value is read when the metrics are collected.
+     * Replaces an earlier gauge with the same name and labels.
+     *
+     * @param name
+     * @param help
+     * @param supplier
+     * @param labels alternating label keys and values
+     */
+    public static void gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+        replace(name, help, Type.GAUGE, labels, supplier);
+    }
+
+    /**
+     * Register a counter maintained elsewhere, whose value is read when the
+     * metrics are collected. Replaces an earlier one with the same name and
+     * labels.
+     *
+     * @param name
+     * @param help
+     * @param supplier
+     * @param labels alternating label keys and values
+     */
+    public static void counterFunction(String name, String help, DoubleSupplier supplier, String... labels) {
+        replace(name, help, Type.COUNTER, labels, supplier);
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format
+     *
+     * @param sb
+     */
+    public static void writePrometheus(StringBuilder sb) {
+        for (Family family : snapshot()) {
+            sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ').append(family.type.name().toLowerCase()).append('\n');
+            for (Map.Entry<String, Object> e : family.children.entrySet()) {
+                String labels = e.getKey();
+                Object metric = e.getValue();
+                if (metric instanceof Histogram) {
+                    Histogram h = (Histogram) metric;
+                    long[] counts = h.getCounts();
+                    long cumulative = 0;
+                    for (int i = 0; i < counts.length; i++) {
+                        cumulative += counts[i];
+                        String le = i < Histogram.BUCKETS.length ? String.valueOf(Histogram.BUCKETS[i]) : "+Inf";
+                        sb.append(family.name).append("_bucket{").append(labels).append(labels.isEmpty() ? "" : ",")
+                                .append("le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+                    }
+                    sample(sb, family.name + "_sum", labels, h.getSum());
+                    sample(sb, family.name + "_count", labels, cumulative);
+                } else {
+                    sample(sb, family.name, labels, value(metric));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write all metrics as InfluxDB line protocol, one measurement per metric
+     * with the labels as tags. Histograms are written as count and sum fields.
+     *
+     * @param sb
+     * @param timestamp in nanoseconds
+     */
+    public static void writeLineProtocol(StringBuilder sb, long timestamp) {
+        for (Family family : snapshot()) {
+            for (Map.Entry<String, Object> e : family.children.entrySet()) {
+                Object metric = e.getValue();
+                double value = metric instanceof Histogram ? 0 : value(metric);
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    continue; // not accepted by InfluxDB
+                }
+                String tags = family.tags.get(e.getKey());
+                sb.append(family.name);
+                if (!tags.isEmpty()) {
+                    sb.append(',').append(tags);
+                }
+                if (metric instanceof Histogram) {
+                    Histogram h = (Histogram) metric;
+                    long count = 0;
+                    for (long c : h.getCounts()) {
+                        count += c;
+                    }
+                    sb.append(" count=").append(count).append(",sum=").append(h.getSum());
+                } else {
+                    sb.append(" value=").append(value);
+                }
+                sb.append(' ').append(timestamp).append('\n');
+            }
+        }
+    }
+
+    /**
+     * @return copies of the registered metric families
+     */
+    private static synchronized List<Family> snapshot() {
+        List<Family> families = new ArrayList<>(FAMILIES.size());
+        for (Family family : FAMILIES.values()) {
+            families.add(family.copy());
+        }
+        return families;
+    }
+
+    private static synchronized Object register(String name, String help, Type type, String[] labels, Object metric) {
+        Family family = family(name, help, type);
+        String key = prometheusLabels(labels);
+        Object existing = family.children.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        family.add(key, lineProtocolTags(labels), metric);
+        return metric;
+    }
+
+    private static synchronized void replace(String name, String help, Type type, String[] labels, Object metric) {
+        family(name, help, type).add(prometheusLabels(labels), lineProtocolTags(labels), metric);
+    }
+
+    private static Family family(String name, String help, Type type) {
+        Family family = FAMILIES.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " already registered as " + family.type);
+        }
+        return family;
+    }
+
+    private static double value(Object metric) {
+        if (metric instanceof Counter) {
+            return ((Counter) metric).get();
+        }
+        try {
+            return ((DoubleSupplier) metric).getAsDouble();
+        } catch (RuntimeException ex) {
+            return Double.NaN; // eg. the connection needed for reading the value is down
+        }
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static String prometheusLabels(String[] labels) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String lineProtocolTags(String[] labels) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (labels[i + 1].isEmpty()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append('=').append(labels[i + 1].replace(" ", "\\ ").replace(",", "\\,").replace("=", "\\="));
+        }
+        return sb.toString();
+    }
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    private static class Family {
+
+        final String name;
+        final String help;
+        final Type type;
+        final Map<String, Object> children = new LinkedHashMap<>();
+        final Map<String, String> tags = new LinkedHashMap<>();
+
+        Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        void add(String labels, String lineProtocolTags, Object metric) {
+            children.put(labels, metric);
+            tags.put(labels, lineProtocolTags);
+        }
+
+        Family copy() {
+            Family copy = new Family(name, help, type);
+            copy.children.putAll(children);
+            copy.tags.putAll(tags);
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package fi.tkgwf.zri.parser;
+
+/**
+ * A single parsed history value. Instances are meant to be reused, the fields
+ * are overwritten by each {@link HistoryEntryParser#parse} call.
+ */
+public class HistoryEntry {
+
+    public long seconds;
+    public long nanos;
+    public long itemId;
+    public char type;
+    public double value;
+
+    /**
+     * @return the timestamp in nanoseconds
+     */
+    public long timestamp() {
+        return seconds * 1_000_000_000 + nanos;
+    }
+}
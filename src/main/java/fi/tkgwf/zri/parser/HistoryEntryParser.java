@@ -0,0 +1,151 @@
+package fi.tkgwf.zri.parser;
+
+/**
+ * Parser for the history entry format exported by zabbix_redis_exporter:
+ * <code>&lt;sec&gt; &lt;ns&gt; &lt;itemid&gt; &lt;type&gt; &lt;value&gt;</code>
+ *
+ * The entry is scanned once into the primitive fields of a reused
+ * {@link HistoryEntry}, without splitting or boxing. Entries of non-numeric
+ * types are rejected before the value is looked at.
+ */
+public class HistoryEntryParser {
+
+    public enum Result {
+        /**
+         * A numeric value was parsed
+         */
+        VALUE,
+        /**
+         * A well formed entry of a type that is not stored
+         */
+        IGNORED_TYPE,
+        MALFORMED
+    }
+
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private HistoryEntryParser() {
+    }
+
+    /**
+     * Parse an entry
+     *
+     * @param s the raw entry
+     * @param out the parsed fields are stored here, only meaningful if
+     * {@link Result#VALUE} is returned
+     * @return the result
+     */
+    public static Result parse(String s, HistoryEntry out) {
+        int len = s.length();
+        int pos = 0;
+
+        int end = s.indexOf(' ', pos);
+        if (end < 0 || (out.seconds = parseUnsigned(s, pos, end)) < 0) {
+            return Result.MALFORMED;
+        }
+        pos = end + 1;
+        end = s.indexOf(' ', pos);
+        if (end < 0 || (out.nanos = parseUnsigned(s, pos, end)) < 0) {
+            return Result.MALFORMED;
+        }
+        pos = end + 1;
+        end = s.indexOf(' ', pos);
+        if (end < 0 || (out.itemId = parseUnsigned(s, pos, end)) < 0) {
+            return Result.MALFORMED;
+        }
+        pos = end + 1;
+        if (pos + 1 >= len || s.charAt(pos + 1) != ' ') {
+            return Result.MALFORMED;
+        }
+        out.type = s.charAt(pos);
+        pos += 2;
+        switch (out.type) {
+            case 'i': // InfluxDB doesn't handle cases where the item type has changed, so safer to just treat everything as floats
+            case 'f':
+                break;
+            case 's':
+            case 't':
+            case 'l':
+                return Result.IGNORED_TYPE; // we're not interested in other types, no need to look at the value
+            default:
+                return Result.MALFORMED;
+        }
+        if (!parseDouble(s, pos, len, out)) {
+            return Result.MALFORMED;
+        }
+        return Result.VALUE;
+    }
+
+    /**
+     * @return the parsed number, or -1 if the range is empty, contains
+     * anything but digits or overflows a long
+     */
+    private static long parseUnsigned(String s, int from, int to) {
+        if (from >= to || to - from > 18) { // 18 digits always fits in a long
+            return -1;
+        }
+        long result = 0;
+        for (int i = from; i < to; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    /**
+     * Parses plain decimal numbers exactly when the significant digits fit in
+     * a double mantissa and the power of ten is exactly representable, in
+     * which case a single multiplication or division is correctly rounded.
+     * Everything else falls back to {@link Double#parseDouble}.
+     */
+    private static boolean parseDouble(String s, int from, int to, HistoryEntry out) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean seenDot = false;
+        boolean exact = true;
+        for (; i < to; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (mantissa >= MAX_EXACT_MANTISSA / 10) {
+                    exact = false;
+                    break;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (seenDot) {
+                    scale++;
+                }
+            } else if (c == '.' && !seenDot) {
+                seenDot = true;
+            } else {
+                exact = false; // exponent or something unexpected
+                break;
+            }
+        }
+        if (exact && digits > 0 && scale < POWERS_OF_TEN.length) {
+            double value = scale == 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
+            out.value = negative ? -value : value;
+            return true;
+        }
+        try {
+            out.value = Double.parseDouble(s.substring(from, to));
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package fi.tkgwf.zri.pipeline;
+
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.connection.InfluxDBConnection;
+import fi.tkgwf.zri.connection.InfluxDBConnection.WriteStats;
+import fi.tkgwf.zri.metrics.Counter;
+import fi.tkgwf.zri.metrics.Metrics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Adjusts the redis and InfluxDB batch sizes, the InfluxDB flush interval and
+ * write concurrency, and the number of active enrich threads while running.
+ *
+ * Every tuner.interval the tuner looks at how full the pipeline queues have
+ * been, and at the latency and the throttled (429/503) and timed out InfluxDB
+ * writes since the last decision. Congestion cuts the write concurrency and
+ * batch size multiplicatively and stretches the flush interval, while
+ * settings that limit the throughput as values back up are increased a step
+ * at a time. Each setting is kept between its tuner.&lt;setting&gt;.min/max
+ * limits, which are read again for every decision, and a changed value of the
+ * setting itself overrides the tuned value. With tuning disabled the settings
+ * simply follow the configuration.
+ */
+class AutoTuner implements Runnable {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final long SAMPLE_MS = 250;
+    private static final int STEPS = 20; // an increase is this fraction of the range between the limits
+
+    final Knob redisBatchSize;
+    final Knob influxBatchSize;
+    final Knob influxBatchTime;
+    final Knob enrichThreads;
+    final LongAdder polls = new LongAdder();
+    final LongAdder fullPolls = new LongAdder();
+    final LongAdder sizeFlushes = new LongAdder();
+
+    private final Pipeline pipeline;
+    private final List<InfluxDBConnection> connections;
+    private final List<Knob> writeConcurrency = new ArrayList<>();
+    private final WriteStats[] lastStats;
+    private final List<Knob> knobs = new ArrayList<>();
+    private Thread thread;
+    private double rawFill;
+    private double writeFill;
+    private int samples;
+    private long lastPolls;
+    private long lastFullPolls;
+    private long lastSizeFlushes;
+
+    /**
+     * @param pipeline
+     * @param connections
+     * @param maxEnrichThreads number of enrich threads started
+     * @param batching false if the InfluxDB writes are not batched
+     */
+    AutoTuner(Pipeline pipeline, List<InfluxDBConnection> connections, int maxEnrichThreads, boolean batching) {
+        this.pipeline = pipeline;
+        this.connections = connections;
+        InfluxDBConnection encoder = connections.get(0);
+        redisBatchSize = knob(new Knob("redis.batch.size", null, () -> Config.getInt("redis.batch.size", 1000), Integer.MAX_VALUE, null));
+        influxBatchSize = knob(batching
+                ? new Knob("influxdb.batch.size", null, () -> Config.getInt("influxdb.batch.size", 1000), Integer.MAX_VALUE, null)
+                : new Knob("influxdb.batch.size", null, encoder::getBatchSize, 1, null));
+        influxBatchTime = knob(batching
+                ? new Knob("influxdb.batch.time", null, () -> Config.getInt("influxdb.batch.time", 10000), Integer.MAX_VALUE, null)
+                : new Knob("influxdb.batch.time", null, () -> (int) encoder.getBatchTimeMs(), 0, null));
+        enrichThreads = knob(new Knob("pipeline.enrich.threads", null,
+                () -> Config.getInt("pipeline.enrich.threads", Runtime.getRuntime().availableProcessors()), maxEnrichThreads, null));
+        for (InfluxDBConnection connection : connections) {
+            writeConcurrency.add(knob(new Knob("influxdb.write.concurrency", connection.getName(),
+                    connection::getConfiguredMaxInFlight, Integer.MAX_VALUE, connection::setMaxInFlight)));
+        }
+        lastStats = connections.stream().map(InfluxDBConnection::getWriteStats).toArray(WriteStats[]::new);
+    }
+
+    private Knob knob(Knob knob) {
+        knobs.add(knob);
+        if (Config.getBoolean("tuner.enable", false)) {
+            knob.update(true); // start within the limits
+        }
+        return knob;
+    }
+
+    void start() {
+        thread = new Thread(this, "tuner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextDecision = System.currentTimeMillis() + Config.getInt("tuner.interval", 5000);
+        try {
+            while (true) {
+                Thread.sleep(SAMPLE_MS);
+                rawFill += (double) pipeline.rawQueue.size() / pipeline.rawQueue.capacity();
+                writeFill += (double) pipeline.writeQueue.size() / pipeline.writeQueue.capacity();
+                samples++;
+                if (System.currentTimeMillis() >= nextDecision) {
+                    decide();
+                    nextDecision = System.currentTimeMillis() + Math.max(SAMPLE_MS, Config.getInt("tuner.interval", 5000));
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOG.debug("Interrupted. Exiting...", ex);
+        }
+    }
+
+    private void decide() {
+        boolean enabled = Config.getBoolean("tuner.enable", false);
+        for (Knob knob : knobs) {
+            knob.update(enabled);
+        }
+        double raw = samples == 0 ? 0 : rawFill / samples;
+        double write = samples == 0 ? 0 : writeFill / samples;
+        rawFill = writeFill = samples = 0;
+        long pollCount = polls.sum() - lastPolls;
+        long fullPollCount = fullPolls.sum() - lastFullPolls;
+        long sizeFlushCount = sizeFlushes.sum() - lastSizeFlushes;
+        lastPolls += pollCount;
+        lastFullPolls += fullPollCount;
+        lastSizeFlushes += sizeFlushCount;
+        double decrease = Math.min(0.9, Math.max(0.1, Config.getDouble("tuner.decrease", 0.5)));
+        long latencyTarget = TimeUnit.MILLISECONDS.toNanos(Config.getInt("tuner.latency.target", 2000));
+        boolean backlog = raw > 0.5 || write > 0.5;
+        boolean anyThrottled = false;
+        boolean anySlow = false;
+        for (int i = 0; i < connections.size(); i++) {
+            WriteStats stats = connections.get(i).getWriteStats();
+            WriteStats last = lastStats[i];
+            lastStats[i] = stats;
+            long requests = stats.requests - last.requests;
+            boolean throttled = stats.throttled > last.throttled;
+            boolean slow = stats.timeouts > last.timeouts || (requests > 0 && (stats.requestNanos - last.requestNanos) / requests > latencyTarget);
+            anyThrottled |= throttled;
+            anySlow |= slow;
+            if (!enabled) {
+                continue;
+            }
+            Knob concurrency = writeConcurrency.get(i);
+            if (throttled || slow) {
+                concurrency.set((int) (concurrency.get() * decrease), throttled ? "throttled" : "slow writes");
+            } else if (stats.saturated > last.saturated && backlog) {
+                concurrency.set(concurrency.get() + concurrency.step(), "all write slots in use");
+            }
+        }
+        if (!enabled) {
+            return;
+        }
+        if (anySlow) {
+            influxBatchSize.set((int) (influxBatchSize.get() * decrease), "slow writes");
+        } else if (backlog && !anyThrottled && sizeFlushCount > 0) {
+            influxBatchSize.set(influxBatchSize.get() + influxBatchSize.step(), "backlog");
+        }
+        if (anyThrottled || anySlow) {
+            influxBatchTime.set((int) Math.ceil(influxBatchTime.get() / decrease), anyThrottled ? "throttled" : "slow writes");
+        } else {
+            influxBatchTime.set(influxBatchTime.get() - influxBatchTime.step(), "no congestion");
+        }
+        if (raw > 0.9) {
+            redisBatchSize.set((int) (redisBatchSize.get() * decrease), "raw queue full");
+        } else if (raw < 0.25 && fullPollCount * 2 > pollCount) {
+            redisBatchSize.set(redisBatchSize.get() + redisBatchSize.step(), "source backlog");
+        }
+        if (raw > 0.5 && write < 0.5) {
+            enrichThreads.set(enrichThreads.get() + enrichThreads.step(), "raw queue backlog");
+        } else if (raw < 0.05) {
+            enrichThreads.set(enrichThreads.get() - 1, "idle");
+        }
+    }
+
+    /**
+     * A tuned setting
+     */
+    static class Knob {
+
+        private final String key;
+        private final String backend;
+        private final IntSupplier configured;
+        private final int limit;
+        private final IntConsumer apply;
+        private final Counter increases;
+        private final Counter decreases;
+        private volatile int value;
+        private int lastConfigured;
+
+        /**
+         * @param key config key of the setting
+         * @param backend InfluxDB backend of a per-backend setting, or null
+         * @param configured reads the configured value
+         * @param limit max value regardless of the configuration
+         * @param apply called with the new value, or null if the value is read
+         * with {@link #get()}
+         */
+        Knob(String key, String backend, IntSupplier configured, int limit, IntConsumer apply) {
+            this.key = key;
+            this.backend = backend;
+            this.configured = configured;
+            this.limit = limit;
+            this.apply = apply;
+            lastConfigured = configured.getAsInt();
+            value = clamp(lastConfigured);
+            String[] labels = backend == null ? new String[]{"setting", key} : new String[]{"setting", key, "backend", backend};
+            Metrics.gauge("zri_tuner_setting", "Current value of a setting adjusted while running", () -> value, labels);
+            increases = Metrics.counter("zri_tuner_adjustments_total", "Changes made by the tuner", with(labels, "direction", "up"));
+            decreases = Metrics.counter("zri_tuner_adjustments_total", "Changes made by the tuner", with(labels, "direction", "down"));
+        }
+
+        private static String[] with(String[] labels, String key, String value) {
+            String[] result = Arrays.copyOf(labels, labels.length + 2);
+            result[labels.length] = key;
+            result[labels.length + 1] = value;
+            return result;
+        }
+
+        int get() {
+            return value;
+        }
+
+        /**
+         * Take a changed configured value into use, and keep the value within
+         * the current limits
+         */
+        void update(boolean tuning) {
+            int current = configured.getAsInt();
+            if (current != lastConfigured) {
+                lastConfigured = current;
+                apply(clamp(current), "configured");
+            }
+            if (tuning) {
+                set(value, "limits");
+            }
+        }
+
+        /**
+         * Change the value, within the limits
+         */
+        void set(int newValue, String reason) {
+            apply(Math.max(min(), Math.min(max(), newValue)), reason);
+        }
+
+        int step() {
+            return Math.max(1, (max() - min()) / STEPS);
+        }
+
+        private int clamp(int v) {
+            return Math.min(limit, Math.max(limit == 0 ? 0 : 1, v));
+        }
+
+        private int min() {
+            return clamp(Config.getInt("tuner." + key + ".min", 1));
+        }
+
+        private int max() {
+            return Math.min(limit, Math.max(min(), Config.getInt("tuner." + key + ".max", limit)));
+        }
+
+        private void apply(int newValue, String reason) {
+            int old = value;
+            if (newValue == old) {
+                return;
+            }
+            value = newValue;
+            if (apply != null) {
+                apply.accept(newValue);
+            }
+            if (newValue > old) {
+                increases.inc();
+            } else {
+                decreases.inc();
+            }
+            String message = "Changed " + (backend == null ? key : key + " of " + backend) + " from " + old + " to " + newValue + " (" + reason + ")";
+            if ("configured".equals(reason)) {
+                LOG.info(message);
+            } else {
+                LOG.debug(message);
+            }
+        }
+    }
+}
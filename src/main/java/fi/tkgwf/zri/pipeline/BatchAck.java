@@ -0,0 +1,58 @@
+package fi.tkgwf.zri.pipeline;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Tracks the entries of a batch taken from a {@link HistorySource} that are
+ * still being processed. Once every entry has been written, discarded or
+ * returned to the source, the source is notified so that it can acknowledge
+ * the batch.
+ */
+public class BatchAck {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    /**
+     * Acknowledgement for sources that don't need one
+     */
+    public static final BatchAck NONE = new BatchAck(0, null);
+
+    private final int size;
+    private final AtomicInteger remaining;
+    private final Runnable onComplete;
+
+    /**
+     * @param size number of entries in the batch
+     * @param onComplete called once, by the thread acknowledging the last entry
+     */
+    public BatchAck(int size, Runnable onComplete) {
+        this.size = size;
+        this.remaining = new AtomicInteger(size);
+        this.onComplete = onComplete;
+    }
+
+    /**
+     * Mark entries of the batch as done
+     *
+     * @param count
+     */
+    public void done(int count) {
+        if (onComplete != null && count > 0 && remaining.addAndGet(-count) == 0) {
+            try {
+                onComplete.run();
+            } catch (RuntimeException ex) {
+                LOG.error("Failed to acknowledge a batch of " + size + " entries, they may be delivered again", ex);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isComplete() {
+        return remaining.get() <= 0;
+    }
+}
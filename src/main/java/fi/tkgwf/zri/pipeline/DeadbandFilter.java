@@ -0,0 +1,188 @@
+package fi.tkgwf.zri.pipeline;
+
+import fi.tkgwf.zri.bean.zabbix.Item;
+import fi.tkgwf.zri.config.Config;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Suppresses values that are equal to, or within a deadband of, the last value
+ * written for the same item. A value is still written once the heartbeat
+ * interval has passed since the last written one, so that the series doesn't
+ * appear to have stopped. A value is remembered as written when it is added
+ * to a batch, and forgotten again if the batch is lost.
+ *
+ * Rules deadband.rule.&lt;n&gt;.* select the items by a regular expression on
+ * the item key, the first matching rule wins. Items matching no rule are
+ * always written. The matching rule is remembered per item and looked up
+ * again when the item metadata is reloaded.
+ *
+ * The last written value and time of each item are kept in primitive arrays
+ * in a number of shards, each an open addressing table keyed by item id.
+ */
+class DeadbandFilter {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final int SHARDS = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int NO_RULE = -1;
+
+    private final Pattern[] patterns;
+    private final double[] absolute;
+    private final double[] percent;
+    private final long heartbeatNanos;
+    private final Shard[] shards = new Shard[SHARDS];
+
+    DeadbandFilter() {
+        List<Pattern> rulePatterns = new ArrayList<>();
+        List<double[]> ruleBands = new ArrayList<>();
+        for (int i = 1; Config.get("deadband.rule." + i + ".pattern") != null; i++) {
+            rulePatterns.add(Pattern.compile(Config.get("deadband.rule." + i + ".pattern")));
+            ruleBands.add(new double[]{Config.getDouble("deadband.rule." + i + ".absolute", 0), Config.getDouble("deadband.rule." + i + ".percent", 0)});
+        }
+        patterns = rulePatterns.toArray(new Pattern[0]);
+        absolute = ruleBands.stream().mapToDouble(b -> Math.abs(b[0])).toArray();
+        percent = ruleBands.stream().mapToDouble(b -> Math.abs(b[1]) / 100).toArray();
+        heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, Config.getInt("deadband.heartbeat", 600000)));
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+        if (patterns.length == 0) {
+            LOG.warn("Deadband filter enabled without any deadband.rule.<n>.pattern, all values will be written");
+        } else {
+            LOG.info("Suppressing unchanged values with " + patterns.length + " deadband rules and a heartbeat every "
+                    + TimeUnit.NANOSECONDS.toMillis(heartbeatNanos) + " ms");
+        }
+    }
+
+    /**
+     * Decide whether to write a value, and remember it as the last written one
+     * if so
+     *
+     * @param value
+     * @return true if the value should not be written
+     */
+    boolean suppress(EnrichedValue value) {
+        if (patterns.length == 0) {
+            return false;
+        }
+        return shards[(int) (value.itemId ^ value.itemId >>> 32) & (SHARDS - 1)].suppress(value);
+    }
+
+    /**
+     * Forget a value remembered as written when its write failed, so that the
+     * next value of the item is written rather than suppressed against it
+     *
+     * @param value
+     */
+    void forget(EnrichedValue value) {
+        if (patterns.length == 0) {
+            return;
+        }
+        shards[(int) (value.itemId ^ value.itemId >>> 32) & (SHARDS - 1)].forget(value);
+    }
+
+    private int rule(Item item) {
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i].matcher(item.key_).matches()) {
+                return i;
+            }
+        }
+        return NO_RULE;
+    }
+
+    private static int hash(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return (int) (key ^ key >>> 32);
+    }
+
+    private class Shard {
+
+        private long[] keys = new long[INITIAL_CAPACITY * 2];
+        private boolean[] used = new boolean[keys.length];
+        private double[] values = new double[keys.length];
+        private long[] times = new long[keys.length];
+        private int[] rules = new int[keys.length];
+        private Item[] items = new Item[keys.length];
+        private int size;
+
+        synchronized boolean suppress(EnrichedValue value) {
+            int t = find(value.itemId);
+            if (!used[t]) {
+                if (size * 2 >= keys.length) {
+                    grow();
+                    t = find(value.itemId);
+                }
+                used[t] = true;
+                keys[t] = value.itemId;
+                size++;
+            } else if (items[t] == value.item && rules[t] == NO_RULE) {
+                return false;
+            } else if (items[t] == value.item && value.timestamp > times[t] && value.timestamp - times[t] < heartbeatNanos) {
+                double last = values[t];
+                double change = Math.abs(value.value - last);
+                int r = rules[t];
+                if (change <= absolute[r] || change <= percent[r] * Math.abs(last)) {
+                    return true;
+                }
+            } else if (value.timestamp < times[t]) {
+                return false; // out of order, write it but keep comparing against the newer value
+            }
+            if (items[t] != value.item) {
+                items[t] = value.item;
+                rules[t] = rule(value.item);
+            }
+            values[t] = value.value;
+            times[t] = value.timestamp;
+            return false;
+        }
+
+        synchronized void forget(EnrichedValue value) {
+            int t = find(value.itemId);
+            if (used[t] && times[t] == value.timestamp) {
+                times[t] = 0; // as if written long ago, the heartbeat lets the next value through
+            }
+        }
+
+        private int find(long key) {
+            int mask = keys.length - 1;
+            int t = hash(key) & mask;
+            while (used[t] && keys[t] != key) {
+                t = (t + 1) & mask;
+            }
+            return t;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            boolean[] oldUsed = used;
+            double[] oldValues = values;
+            long[] oldTimes = times;
+            int[] oldRules = rules;
+            Item[] oldItems = items;
+            int capacity = keys.length * 2;
+            keys = new long[capacity];
+            used = new boolean[capacity];
+            values = new double[capacity];
+            times = new long[capacity];
+            rules = new int[capacity];
+            items = new Item[capacity];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    int t = find(oldKeys[i]);
+                    used[t] = true;
+                    keys[t] = oldKeys[i];
+                    values[t] = oldValues[i];
+                    times[t] = oldTimes[i];
+                    rules[t] = oldRules[i];
+                    items[t] = oldItems[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package fi.tkgwf.zri.pipeline;
+
+import fi.tkgwf.zri.bean.zabbix.Host;
+import fi.tkgwf.zri.bean.zabbix.Item;
+import fi.tkgwf.zri.connection.ZabbixConnection;
+import fi.tkgwf.zri.parser.HistoryEntry;
+import fi.tkgwf.zri.parser.HistoryEntryParser;
+import fi.tkgwf.zri.pipeline.StageCounters.SkipReason;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Parses raw history entries and resolves their item and host from zabbix.
+ * Several instances of this stage run in parallel.
+ *
+ * Entries whose metadata is not cached are parked until the lookup completes
+ * and then retried ahead of the other batches of their lane, so that they
+ * don't hold up unrelated entries. While the
+ * zabbix API is unavailable entries that don't fit in the parking space are
+ * returned to the source instead of blocking.
+ *
+ * Only as many instances take new batches as the tuner allows, the rest wait
+ * until they are needed.
+ */
+class EnrichStage implements Runnable {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private final Pipeline pipeline;
+    private final ZabbixConnection zabbix;
+    private final StageCounters counters;
+    private final int maxParked;
+    private final int index;
+    private final HistoryEntry parsed = new HistoryEntry();
+
+    /**
+     * @param pipeline
+     * @param zabbix
+     * @param counters
+     * @param maxParked
+     * @param index number of the instance, instances from the number of
+     * active enrich threads up are idle
+     */
+    EnrichStage(Pipeline pipeline, ZabbixConnection zabbix, StageCounters counters, int maxParked, int index) {
+        this.pipeline = pipeline;
+        this.zabbix = zabbix;
+        this.counters = counters;
+        this.maxParked = maxParked;
+        this.index = index;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                if (index >= pipeline.tuner.enrichThreads.get()) {
+                    if (pipeline.readerDone) {
+                        break;
+                    }
+                    Thread.sleep(Pipeline.POLL_TIMEOUT_MS);
+                    continue;
+                }
+                SourceBatch batch = pipeline.rawQueue.poll(Pipeline.POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (batch == null) {
+                    if (pipeline.readerDone && pipeline.parked.get() == 0) {
+                        break;
+                    }
+                    continue;
+                }
+                if (!batch.retry) {
+                    counters.in(batch.entries.size());
+                }
+                processBatch(batch);
+            }
+        } catch (InterruptedException ex) {
+            LOG.info("Interrupted. Exiting...", ex);
+        }
+    }
+
+    /**
+     * Process a batch of entries. Resolved values are passed to the writers,
+     * entries waiting for a lookup are parked and entries whose lookup failed
+     * are returned to the queue. Discarded entries are acknowledged right
+     * away, the rest once they have been written or returned.
+     *
+     * @param batch
+     */
+    private void processBatch(SourceBatch batch) throws InterruptedException {
+        List<EnrichedValue> values = new ArrayList<>(batch.entries.size());
+        List<String> parkedEntries = new ArrayList<>();
+        List<CompletableFuture<?>> lookups = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        for (String entry : batch.entries) {
+            try {
+                CompletableFuture<?> lookup = processEntry(entry, batch.ack, values);
+                if (lookup != null) {
+                    parkedEntries.add(entry);
+                    lookups.add(lookup);
+                }
+            } catch (CompletionException ex) {
+                failed.add(entry); // lookup already failed, the loader has logged it
+            } catch (RuntimeException ex) {
+                LOG.error("Unexpected error while processing data, data will be lost!", ex);
+                counters.failed(1);
+            }
+        }
+        batch.ack.done(batch.entries.size() - values.size() - parkedEntries.size() - failed.size());
+        if (!values.isEmpty()) {
+            counters.out(values.size());
+            pipeline.writeQueue.put(new EnrichedBatch(batch.lane, values));
+        }
+        if (!failed.isEmpty()) {
+            counters.failed(failed.size());
+            pipeline.handleFailure(batch.subset(failed));
+        }
+        if (!parkedEntries.isEmpty()) {
+            park(batch.subset(parkedEntries), lookups);
+        }
+    }
+
+    private void park(SourceBatch entries, List<CompletableFuture<?>> lookups) throws InterruptedException {
+        CompletableFuture<Void> all = CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0]));
+        if (pipeline.parked.get() >= maxParked) {
+            if (!zabbix.isAvailable()) {
+                // zabbix is down, return these to the source so that entries with cached metadata keep flowing
+                pipeline.handleFailure(entries);
+                return;
+            }
+            // too much is already waiting, slow down the intake instead of parking even more
+            try {
+                all.join();
+            } catch (CompletionException ex) {
+                counters.failed(entries.entries.size());
+                pipeline.handleFailure(entries);
+                return;
+            }
+            processBatch(entries);
+            return;
+        }
+        pipeline.parked.addAndGet(entries.entries.size());
+        all.whenComplete((result, ex) -> {
+            if (ex == null) {
+                pipeline.rawQueue.putFirst(entries.retry()); // ahead of the rest of its lane, before it stops counting as parked
+                pipeline.parked.addAndGet(-entries.entries.size());
+            } else {
+                pipeline.parked.addAndGet(-entries.entries.size());
+                counters.failed(entries.entries.size());
+                pipeline.handleFailure(entries);
+            }
+        });
+    }
+
+    /**
+     * Process a single entry
+     *
+     * @param entry
+     * @param ack acknowledgement of the batch the entry belongs to
+     * @param values resolved value is added here
+     * @return null if the entry was resolved or discarded, otherwise the
+     * pending lookup the entry is waiting for
+     * @throws CompletionException if the zabbix lookup failed, the entry is not
+     * processed
+     */
+    private CompletableFuture<?> processEntry(String entry, BatchAck ack, List<EnrichedValue> values) {
+        switch (HistoryEntryParser.parse(entry, parsed)) {
+            case VALUE:
+                break;
+            case IGNORED_TYPE:
+                counters.skipped(SkipReason.IGNORED_TYPE);
+                return null;
+            default:
+                LOG.warn("Malformed data: {}", entry);
+                counters.skipped(SkipReason.MALFORMED);
+                return null;
+        }
+        CompletableFuture<Item> itemLookup = zabbix.getItem(parsed.itemId);
+        if (!itemLookup.isDone()) {
+            return itemLookup;
+        }
+        Item item = itemLookup.join();
+        if (item == null) {
+            counters.skipped(SkipReason.UNKNOWN_ITEM);
+            return null;
+        }
+        CompletableFuture<Host> hostLookup = zabbix.getHost(item.hostid);
+        if (!hostLookup.isDone()) {
+            return hostLookup;
+        }
+        Host host = hostLookup.join();
+        if (host == null) {
+            counters.skipped(SkipReason.UNKNOWN_HOST);
+            return null;
+        }
+        values.add(new EnrichedValue(parsed.itemId, host, item, parsed.timestamp(), parsed.value, ack));
+        return null;
+    }
+}
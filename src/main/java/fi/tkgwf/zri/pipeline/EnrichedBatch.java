@@ -0,0 +1,17 @@
+package fi.tkgwf.zri.pipeline;
+
+import java.util.List;
+
+/**
+ * Values resolved from a {@link SourceBatch}, on their way to the writers
+ */
+class EnrichedBatch {
+
+    final int lane;
+    final List<EnrichedValue> values;
+
+    EnrichedBatch(int lane, List<EnrichedValue> values) {
+        this.lane = lane;
+        this.values = values;
+    }
+}
@@ -0,0 +1,32 @@
+package fi.tkgwf.zri.pipeline;
+
+import fi.tkgwf.zri.bean.zabbix.Host;
+import fi.tkgwf.zri.bean.zabbix.Item;
+import java.util.Comparator;
+
+/**
+ * A history value resolved against zabbix metadata, ready to be written
+ */
+public class EnrichedValue {
+
+    /**
+     * Orders values by series, that is by item, and by time within a series
+     */
+    public static final Comparator<EnrichedValue> SERIES_ORDER = Comparator.comparingLong((EnrichedValue v) -> v.itemId).thenComparingLong(v -> v.timestamp);
+
+    public final long itemId;
+    public final Host host;
+    public final Item item;
+    public final long timestamp;
+    public final double value;
+    public final BatchAck ack;
+
+    public EnrichedValue(long itemId, Host host, Item item, long timestamp, double value, BatchAck ack) {
+        this.itemId = itemId;
+        this.host = host;
+        this.item = item;
+        this.timestamp = timestamp;
+        this.value = value;
+        this.ack = ack;
+    }
+}
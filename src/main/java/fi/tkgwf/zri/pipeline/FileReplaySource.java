@@ -0,0 +1,420 @@
+package fi.tkgwf.zri.pipeline;
+
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.metrics.Counter;
+import fi.tkgwf.zri.metrics.Metrics;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Replays history entries from files, for example to backfill a new InfluxDB
+ * from zabbix history dumps. The files contain one entry per line in the same
+ * format as the redis queue, and may be gzipped.
+ *
+ * A reader thread cuts the files into chunks ending at a line break, memory
+ * mapping plain files and decompressing gzipped ones, and a number of decoder
+ * threads split the chunks into batches of entries in parallel. Entries are
+ * handed out at no more than the configured rate.
+ *
+ * The progress is saved into a checkpoint file: the offset of each file up to
+ * which every entry has been written. A replay that is started again with the
+ * same checkpoint file continues from there, entries after the offset may be
+ * written a second time, which InfluxDB treats as overwriting the same points.
+ */
+public class FileReplaySource implements HistorySource {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final String DONE = "done";
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    private final List<Path> files = new ArrayList<>();
+    private final Path checkpointFile;
+    private final long checkpointIntervalMs;
+    private final int chunkSize;
+    private final int batchSize;
+    private final long nanosPerEntry;
+    private final Map<String, String> checkpoint = new LinkedHashMap<>(); // guarded by inFlight
+    private final ArrayDeque<Chunk> inFlight = new ArrayDeque<>(); // in file and offset order
+    private final BlockingQueue<Chunk> chunks;
+    private final BlockingQueue<SourceBatch> batches;
+    private final ConcurrentLinkedQueue<SourceBatch> retries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger requeued = new AtomicInteger();
+    private final Counter readBytes = Metrics.counter("zri_replay_read_bytes_total", "Bytes read from the replayed files, uncompressed");
+    private final Counter readEntries = Metrics.counter("zri_replay_read_entries_total", "Entries read from the replayed files");
+    private volatile boolean readerDone;
+    private long lastCheckpoint; // guarded by inFlight
+    private long nextAllowed = System.nanoTime();
+
+    /**
+     * Replay the files and directories listed in replay.files
+     *
+     * @throws IOException if a directory can't be listed
+     */
+    public FileReplaySource() throws IOException {
+        for (String name : Config.get("replay.files").split(",")) {
+            if (name.trim().isEmpty()) {
+                continue;
+            }
+            Path path = Paths.get(name.trim());
+            if (Files.isDirectory(path)) {
+                List<Path> contents = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                    stream.forEach(p -> {
+                        if (Files.isRegularFile(p)) {
+                            contents.add(p);
+                        }
+                    });
+                }
+                Collections.sort(contents);
+                files.addAll(contents);
+            } else {
+                files.add(path);
+            }
+        }
+        checkpointFile = Paths.get(Config.get("replay.checkpoint.file"));
+        checkpointIntervalMs = Math.max(0, Config.getInt("replay.checkpoint.interval", 10000));
+        chunkSize = Math.max(1 << 16, Config.getInt("replay.chunk.mb", 16) << 20);
+        batchSize = Math.max(1, Config.getInt("redis.batch.size", 1000));
+        int rate = Config.getInt("replay.rate", 0);
+        nanosPerEntry = rate > 0 ? 1_000_000_000L / rate : 0;
+        int threads = Math.max(1, Config.getInt("replay.threads", 2));
+        chunks = new ArrayBlockingQueue<>(threads);
+        batches = new ArrayBlockingQueue<>(Math.max(1, Config.getInt("pipeline.queue.size", 16)) * threads);
+        loadCheckpoint();
+        Thread reader = new Thread(this::read, "replay-reader");
+        reader.setDaemon(true);
+        reader.start();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(this::decode, "replay-decode-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        LOG.info("Replaying " + files.size() + " files with " + threads + " decoder threads"
+                + (rate > 0 ? " at up to " + rate + " entries per second" : ""));
+    }
+
+    @Override
+    public SourceBatch poll(int maxEntries) throws InterruptedException {
+        SourceBatch batch = retries.poll();
+        if (batch == null) {
+            batch = batches.poll(Pipeline.POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (batch == null) {
+                return new SourceBatch(Collections.emptyList(), BatchAck.NONE);
+            }
+        }
+        if (nanosPerEntry > 0) {
+            long wait = nextAllowed - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            nextAllowed = Math.max(nextAllowed, System.nanoTime() - 1_000_000_000L) + batch.entries.size() * nanosPerEntry;
+        }
+        return batch;
+    }
+
+    /**
+     * Entries that could not be processed are retried later. The checkpoint
+     * is not saved while any are outstanding, so that they are replayed again
+     * if the process stops before they have been written.
+     */
+    @Override
+    public void requeue(List<String> entries) {
+        requeued.addAndGet(entries.size());
+        retries.add(new SourceBatch(new ArrayList<>(entries), new BatchAck(entries.size(), () -> {
+            requeued.addAndGet(-entries.size());
+            advanceCheckpoint();
+        })));
+    }
+
+    @Override
+    public boolean isFinished() {
+        if (!readerDone || !chunks.isEmpty() || !batches.isEmpty() || !retries.isEmpty() || requeued.get() > 0) {
+            return false;
+        }
+        synchronized (inFlight) {
+            return inFlight.isEmpty();
+        }
+    }
+
+    @Override
+    public String getStats() {
+        synchronized (inFlight) {
+            long done = checkpoint.values().stream().filter(DONE::equals).count();
+            return "replayed files: " + done + "/" + files.size() + ", entries read: " + readEntries.get();
+        }
+    }
+
+    private void loadCheckpoint() {
+        if (!Files.exists(checkpointFile)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(checkpointFile, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    checkpoint.put(line.substring(tab + 1), line.substring(0, tab));
+                }
+            }
+            LOG.info("Resuming the replay from checkpoint " + checkpointFile);
+        } catch (IOException ex) {
+            LOG.warn("Failed to read the replay checkpoint " + checkpointFile + ", starting from the beginning", ex);
+        }
+    }
+
+    /**
+     * Saves the offsets of the chunks written so far, at most once per
+     * checkpoint interval unless a file has been completed
+     */
+    private void advanceCheckpoint() {
+        synchronized (inFlight) {
+            boolean fileDone = false;
+            while (!inFlight.isEmpty() && inFlight.peek().isComplete()) {
+                Chunk chunk = inFlight.poll();
+                checkpoint.put(chunk.file.toString(), chunk.last ? DONE : String.valueOf(chunk.end));
+                fileDone |= chunk.last;
+            }
+            long now = System.currentTimeMillis();
+            if (requeued.get() > 0 || !fileDone && !inFlight.isEmpty() && now - lastCheckpoint < checkpointIntervalMs) {
+                return;
+            }
+            lastCheckpoint = now;
+            StringBuilder sb = new StringBuilder();
+            checkpoint.forEach((file, offset) -> sb.append(offset).append('\t').append(file).append('\n'));
+            Path tmp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+            try {
+                Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                LOG.warn("Failed to save the replay checkpoint " + checkpointFile, ex);
+            }
+        }
+    }
+
+    private void read() {
+        try {
+            for (Path file : files) {
+                String saved;
+                synchronized (inFlight) {
+                    saved = checkpoint.get(file.toString());
+                }
+                if (DONE.equals(saved)) {
+                    LOG.info("Skipping " + file + ", already replayed");
+                    continue;
+                }
+                long offset = saved == null ? 0 : Long.parseLong(saved);
+                LOG.info("Replaying " + file + (offset > 0 ? " from offset " + offset : ""));
+                try {
+                    if (file.getFileName().toString().endsWith(".gz")) {
+                        readCompressed(file, offset);
+                    } else {
+                        readMapped(file, offset);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    LOG.error("Failed to replay " + file + ", skipping the rest of it", ex);
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOG.info("Interrupted. Exiting...", ex);
+        } finally {
+            readerDone = true;
+        }
+    }
+
+    /**
+     * Maps the file one chunk at a time, each chunk ending after the last
+     * line break within it
+     */
+    private void readMapped(Path file, long offset) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long pos = offset;
+            while (pos < size) {
+                long length = Math.min(chunkSize, size - pos);
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+                int end = (int) length;
+                if (pos + length < size) {
+                    while (end > 0 && mapped.get(end - 1) != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        throw new IOException("Line longer than " + chunkSize + " bytes at offset " + pos);
+                    }
+                }
+                mapped.limit(end);
+                submit(new Chunk(file, pos + end, pos + end == size, mapped));
+                pos += end;
+            }
+            if (size == 0 || offset >= size) {
+                submit(new Chunk(file, size, true, ByteBuffer.allocate(0)));
+            }
+        }
+    }
+
+    /**
+     * Decompresses the file into chunks, carrying the incomplete last line of
+     * each chunk over to the next one. Offsets are in uncompressed bytes, so
+     * resuming has to decompress and skip the part already replayed.
+     */
+    private void readCompressed(Path file, long offset) throws IOException, InterruptedException {
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file), READ_BUFFER_SIZE), READ_BUFFER_SIZE)) {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = in.skip(offset - skipped);
+                if (n <= 0) {
+                    break;
+                }
+                skipped += n;
+            }
+            long pos = skipped;
+            byte[] carry = new byte[0];
+            while (true) {
+                byte[] buffer = new byte[Math.max(chunkSize, carry.length * 2)];
+                System.arraycopy(carry, 0, buffer, 0, carry.length);
+                int length = carry.length;
+                int n = 0;
+                while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) >= 0) {
+                    length += n;
+                }
+                boolean eof = n < 0;
+                int end = length;
+                if (!eof) {
+                    while (end > 0 && buffer[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        carry = buffer; // no line break yet, read a bigger chunk
+                        continue;
+                    }
+                }
+                carry = new byte[length - end];
+                System.arraycopy(buffer, end, carry, 0, carry.length);
+                submit(new Chunk(file, pos + end, eof, ByteBuffer.wrap(buffer, 0, end)));
+                pos += end;
+                if (eof) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void submit(Chunk chunk) throws InterruptedException {
+        synchronized (inFlight) {
+            inFlight.add(chunk);
+        }
+        readBytes.add(chunk.data.remaining());
+        chunks.put(chunk);
+    }
+
+    private void decode() {
+        try {
+            while (!readerDone || !chunks.isEmpty()) {
+                Chunk chunk = chunks.poll(Pipeline.POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (chunk != null) {
+                    decode(chunk);
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOG.info("Interrupted. Exiting...", ex);
+        }
+    }
+
+    /**
+     * Splits a chunk into batches of entries. The chunk is complete once all
+     * of its batches have been acknowledged.
+     */
+    private void decode(Chunk chunk) throws InterruptedException {
+        ByteBuffer data = chunk.data;
+        byte[] line = new byte[256];
+        List<String> entries = new ArrayList<>(batchSize);
+        int count = 0;
+        while (data.hasRemaining()) {
+            int length = 0;
+            while (data.hasRemaining()) {
+                byte b = data.get();
+                if (b == '\n') {
+                    break;
+                }
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, length * 2);
+                }
+                line[length++] = b;
+            }
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            if (length == 0) {
+                continue;
+            }
+            // the numeric entries the pipeline keeps are plain ASCII
+            entries.add(new String(line, 0, length, StandardCharsets.ISO_8859_1));
+            if (entries.size() == batchSize) {
+                count += entries.size();
+                emit(chunk, entries);
+                entries = new ArrayList<>(batchSize);
+            }
+        }
+        if (!entries.isEmpty()) {
+            count += entries.size();
+            emit(chunk, entries);
+        }
+        readEntries.add(count);
+        chunk.batchDone(); // releases the hold taken when the chunk was created
+    }
+
+    private void emit(Chunk chunk, List<String> entries) throws InterruptedException {
+        chunk.pending.incrementAndGet();
+        batches.put(new SourceBatch(entries, new BatchAck(entries.size(), chunk::batchDone)));
+    }
+
+    private class Chunk {
+
+        final Path file;
+        final long end;
+        final boolean last;
+        final ByteBuffer data;
+        final AtomicInteger pending = new AtomicInteger(1); // batches not yet acknowledged, plus one until decoded
+
+        Chunk(Path file, long end, boolean last, ByteBuffer data) {
+            this.file = file;
+            this.end = end;
+            this.last = last;
+            this.data = data;
+        }
+
+        boolean isComplete() {
+            return pending.get() == 0;
+        }
+
+        void batchDone() {
+            if (pending.decrementAndGet() == 0) {
+                advanceCheckpoint();
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package fi.tkgwf.zri.pipeline;
+
+import java.util.List;
+
+/**
+ * Source of raw history entries for the pipeline
+ */
+public interface HistorySource {
+
+    /**
+     * Take the next entries from the source, waiting for a while for new
+     * entries if there are none available. The acknowledgement of the batch
+     * is completed once all of its entries have been written, discarded or
+     * returned with {@link #requeue}.
+     *
+     * @param maxEntries
+     * @return the entries in source order, empty if none are available
+     * @throws InterruptedException
+     */
+    SourceBatch poll(int maxEntries) throws InterruptedException;
+
+    /**
+     * Return entries that could not be processed to the source so that they
+     * are retried later
+     *
+     * @param entries
+     */
+    void requeue(List<String> entries);
+
+    /**
+     * @return true once the source has no more entries and everything taken
+     * from it has been acknowledged, for sources with an end such as files
+     */
+    default boolean isFinished() {
+        return false;
+    }
+
+    /**
+     * @return a human readable summary of the source statistics since startup
+     */
+    String getStats();
+}
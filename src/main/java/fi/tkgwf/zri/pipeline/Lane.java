@@ -0,0 +1,42 @@
+package fi.tkgwf.zri.pipeline;
+
+/**
+ * An input of the pipeline with its own reader, queue capacity, batch size
+ * and lag metric, such as one of several redis queues
+ */
+public class Lane {
+
+    public final String name;
+    public final HistorySource source;
+    /**
+     * Share of the pipeline relative to the other lanes of the same priority
+     */
+    public final int weight;
+    /**
+     * Lanes of a higher priority are always processed first
+     */
+    public final int priority;
+    /**
+     * Max entries to take from the source at once, or 0 for redis.batch.size
+     * as adjusted by the tuner
+     */
+    public final int batchSize;
+
+    public Lane(String name, HistorySource source, int weight, int priority, int batchSize) {
+        this.name = name;
+        this.source = source;
+        this.weight = Math.max(1, weight);
+        this.priority = priority;
+        this.batchSize = Math.max(0, batchSize);
+    }
+
+    /**
+     * A single lane taking the whole pipeline
+     *
+     * @param name
+     * @param source
+     */
+    public Lane(String name, HistorySource source) {
+        this(name, source, 1, 0, 0);
+    }
+}
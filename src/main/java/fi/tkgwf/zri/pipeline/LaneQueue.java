@@ -0,0 +1,180 @@
+package fi.tkgwf.zri.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * Bounded queue between pipeline stages with a separate capacity for each
+ * input lane, so that a lane that falls behind only blocks the producers of
+ * its own batches.
+ *
+ * Batches are taken from the lanes of the highest priority that has any. Lanes
+ * of the same priority share the consumers in proportion to their weights,
+ * counted in entries: each lane has a virtual time that advances by the size
+ * of a batch divided by the weight of the lane when a batch is taken, and the
+ * lane furthest behind goes next. A lane that has been empty starts again from
+ * the current virtual time rather than from where it left off, so it can't
+ * save up a share while idle.
+ *
+ * @param <E> batch type
+ */
+class LaneQueue<E> {
+
+    private final int[] weights;
+    private final int[] priorities;
+    private final int capacity;
+    private final ToIntFunction<E> laneOf;
+    private final ToIntFunction<E> sizeOf;
+    private final List<ArrayDeque<E>> queues;
+    private final double[] virtualTimes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition[] notFull;
+    private double virtualTime;
+    private int size;
+
+    /**
+     * @param lanes
+     * @param capacity max number of batches per lane
+     * @param laneOf lane index of a batch
+     * @param sizeOf number of entries a batch is charged to its lane for, 0 for
+     * a batch that comes back through {@link #putFirst} and was charged already
+     */
+    LaneQueue(List<Lane> lanes, int capacity, ToIntFunction<E> laneOf, ToIntFunction<E> sizeOf) {
+        this.capacity = capacity;
+        this.laneOf = laneOf;
+        this.sizeOf = sizeOf;
+        weights = lanes.stream().mapToInt(lane -> lane.weight).toArray();
+        priorities = lanes.stream().mapToInt(lane -> lane.priority).toArray();
+        queues = new ArrayList<>(lanes.size());
+        notFull = new Condition[lanes.size()];
+        for (int i = 0; i < lanes.size(); i++) {
+            queues.add(new ArrayDeque<>(capacity));
+            notFull[i] = lock.newCondition();
+        }
+        virtualTimes = new double[lanes.size()];
+    }
+
+    /**
+     * Add a batch, waiting while its lane is full
+     *
+     * @param batch
+     * @throws InterruptedException
+     */
+    void put(E batch) throws InterruptedException {
+        int lane = laneOf.applyAsInt(batch);
+        lock.lockInterruptibly();
+        try {
+            while (queues.get(lane).size() >= capacity) {
+                notFull[lane].await();
+            }
+            add(lane, batch, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add a batch to the head of its lane without waiting, even if the lane is
+     * full, for batches that were taken earlier and come back to be processed
+     * again
+     *
+     * @param batch
+     */
+    void putFirst(E batch) {
+        int lane = laneOf.applyAsInt(batch);
+        lock.lock();
+        try {
+            add(lane, batch, true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(int lane, E batch, boolean first) {
+        ArrayDeque<E> queue = queues.get(lane);
+        if (queue.isEmpty()) {
+            virtualTimes[lane] = Math.max(virtualTimes[lane], virtualTime);
+        }
+        if (first) {
+            queue.addFirst(batch);
+        } else {
+            queue.addLast(batch);
+        }
+        size++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Take the next batch
+     *
+     * @param timeout
+     * @param unit
+     * @return the batch, or null if none arrived in time
+     * @throws InterruptedException
+     */
+    E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            int next = -1;
+            for (int i = 0; i < queues.size(); i++) {
+                if (!queues.get(i).isEmpty() && (next < 0 || priorities[i] > priorities[next]
+                        || (priorities[i] == priorities[next] && virtualTimes[i] < virtualTimes[next]))) {
+                    next = i;
+                }
+            }
+            E batch = queues.get(next).poll();
+            size--;
+            virtualTime = virtualTimes[next];
+            virtualTimes[next] += (double) sizeOf.applyAsInt(batch) / weights[next];
+            notFull[next].signal();
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of batches in all lanes
+     */
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane
+     * @return number of batches in a lane
+     */
+    int size(int lane) {
+        lock.lock();
+        try {
+            return queues.get(lane).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return max number of batches in all lanes
+     */
+    int capacity() {
+        return capacity * queues.size();
+    }
+}
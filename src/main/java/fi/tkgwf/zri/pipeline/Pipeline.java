@@ -0,0 +1,260 @@
+package fi.tkgwf.zri.pipeline;
+
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.connection.InfluxDBConnection;
+import fi.tkgwf.zri.connection.InfluxDBRouter;
+import fi.tkgwf.zri.connection.ZabbixConnection;
+import fi.tkgwf.zri.metrics.Metrics;
+import fi.tkgwf.zri.utils.Backoff;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Staged processing pipeline: a reader per input lane, a pool of enrich
+ * workers and a pool of writers, connected by bounded queues. When the
+ * downstream stages fall behind the queues fill up and the readers block, so
+ * backpressure is applied to the source queues rather than to memory.
+ *
+ * Each lane has its own capacity in the queues and the workers take batches
+ * by lane priority and weight, see {@link LaneQueue}, so a backlog in one
+ * lane doesn't hold up the batches of a lane with a higher priority.
+ *
+ * The batch sizes, flush interval, write concurrency and number of active
+ * enrich threads are managed by an {@link AutoTuner} while running.
+ */
+public class Pipeline {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    static final long POLL_TIMEOUT_MS = 500;
+
+    private static final long STATS_INTERVAL_MS = 60 * 60 * 1000;
+    private static final long WRITE_SHUTDOWN_TIMEOUT_MS = 30000;
+
+    final LaneQueue<SourceBatch> rawQueue;
+    final LaneQueue<EnrichedBatch> writeQueue;
+    final List<Lane> lanes;
+    final AtomicInteger parked = new AtomicInteger();
+    final AutoTuner tuner;
+    volatile boolean readerDone;
+    volatile boolean enrichDone;
+
+    private final InfluxDBRouter router;
+    private final StageCounters readerCounters = new StageCounters("reader");
+    private final StageCounters enrichCounters = new StageCounters("enrich");
+    private final StageCounters writerCounters = new StageCounters("writer");
+    private final List<Thread> enrichThreads = new ArrayList<>();
+    private final List<Thread> writerThreads = new ArrayList<>();
+    private final List<Thread> readerThreads = new ArrayList<>();
+    private final SpillBuffer spill;
+    private final Rollup rollup;
+    private volatile long nextStats;
+
+    /**
+     * Pipeline with a single input
+     *
+     * @param source
+     * @param zabbix
+     * @param router
+     */
+    public Pipeline(HistorySource source, ZabbixConnection zabbix, InfluxDBRouter router) {
+        this(Collections.singletonList(new Lane("default", source)), zabbix, router);
+    }
+
+    /**
+     * Pipeline with several inputs
+     *
+     * @param lanes
+     * @param zabbix
+     * @param router
+     */
+    public Pipeline(List<Lane> lanes, ZabbixConnection zabbix, InfluxDBRouter router) {
+        this.lanes = lanes;
+        this.router = router;
+        int queueSize = Math.max(1, Config.getInt("pipeline.queue.size", 16));
+        int enrichThreadCount = Math.max(1, Config.getInt("pipeline.enrich.threads", Runtime.getRuntime().availableProcessors()));
+        if (Config.getBoolean("tuner.enable", false)) {
+            enrichThreadCount = Math.max(enrichThreadCount, Config.getInt("tuner.pipeline.enrich.threads.max", enrichThreadCount));
+        }
+        int writerThreadCount = Math.max(1, Config.getInt("pipeline.writer.threads", 1));
+        int maxParked = Math.max(1, Config.getInt("pipeline.parked.max", 100000));
+        boolean retryWrites = Config.getBoolean("redis.reliable.enable", false);
+        spill = Config.getBoolean("spill.enable", false) ? createSpillBuffer(router) : null;
+        rollup = Config.getBoolean("rollup.enable", false) ? new Rollup(router, spill) : null;
+        boolean writeRaw = rollup == null || Config.getBoolean("rollup.raw.enable", true);
+        if (!writeRaw && (retryWrites || "stream".equalsIgnoreCase(Config.get("redis.input")))) {
+            LOG.warn("rollup.raw.enable=false acknowledges values to redis once they are added to their rollup windows, not once the windows are written."
+                    + " Values of windows still open when the process is killed are lost even though redis.reliable.enable or redis.input=stream is set.");
+        }
+        DeadbandFilter deadband = Config.getBoolean("deadband.enable", false) ? new DeadbandFilter() : null;
+        // a retried batch was charged to its lane when it was first taken
+        rawQueue = new LaneQueue<>(lanes, queueSize, batch -> batch.lane, batch -> batch.retry ? 0 : batch.entries.size());
+        writeQueue = new LaneQueue<>(lanes, queueSize, batch -> batch.lane, batch -> batch.values.size());
+        for (int i = 0; i < lanes.size(); i++) {
+            int lane = i;
+            Metrics.gauge("zri_queue_size", "Batches waiting in a pipeline queue", () -> rawQueue.size(lane), "queue", "raw", "lane", lanes.get(i).name);
+            Metrics.gauge("zri_queue_size", "Batches waiting in a pipeline queue", () -> writeQueue.size(lane), "queue", "write", "lane", lanes.get(i).name);
+            if (i > 0) {
+                readerThreads.add(new Thread(() -> read(lane), "reader-" + lanes.get(i).name)); // the first lane is read by the caller of run()
+            }
+        }
+        Metrics.gauge("zri_parked_entries", "Entries parked waiting for zabbix lookups", parked::get);
+        tuner = new AutoTuner(this, router.getConnections(), enrichThreadCount, Config.getBoolean("influxdb.batch.enable", true));
+        for (int i = 0; i < enrichThreadCount; i++) {
+            enrichThreads.add(new Thread(new EnrichStage(this, zabbix, enrichCounters, maxParked, i), "enrich-" + i));
+        }
+        for (int i = 0; i < writerThreadCount; i++) {
+            writerThreads.add(new Thread(new WriterStage(this, router, writerCounters, retryWrites, spill, rollup, writeRaw, deadband), "writer-" + i));
+        }
+    }
+
+    private static SpillBuffer createSpillBuffer(InfluxDBRouter router) {
+        try {
+            return new SpillBuffer(router);
+        } catch (IOException ex) {
+            LOG.error("Failed to open the spill buffer, continuing without it", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Starts the worker stages and runs the readers until interrupted, or
+     * until every source is finished. The reader of the first lane runs in the
+     * calling thread. Values already taken from the sources are processed
+     * before returning.
+     */
+    public void run() {
+        LOG.info("Starting pipeline with " + enrichThreads.size() + " enrich and " + writerThreads.size() + " writer threads"
+                + (lanes.size() > 1 ? " for " + lanes.size() + " lanes" : ""));
+        enrichThreads.forEach(Thread::start);
+        writerThreads.forEach(Thread::start);
+        if (spill != null) {
+            spill.start();
+        }
+        if (rollup != null) {
+            rollup.start();
+        }
+        tuner.start();
+        nextStats = System.currentTimeMillis() + STATS_INTERVAL_MS;
+        readerThreads.forEach(Thread::start);
+        try {
+            if (read(0)) {
+                joinAll(readerThreads);
+            }
+        } finally {
+            readerThreads.forEach(Thread::interrupt);
+            joinAll(readerThreads);
+            tuner.stop();
+            readerDone = true;
+            joinAll(enrichThreads);
+            enrichDone = true;
+            joinAll(writerThreads);
+            if (rollup != null) {
+                rollup.stop();
+            }
+            awaitWrites();
+        }
+    }
+
+    /**
+     * Read a lane until interrupted or until its source is finished
+     *
+     * @param laneIndex
+     * @return true if the source was finished
+     */
+    private boolean read(int laneIndex) {
+        Lane lane = lanes.get(laneIndex);
+        HistorySource source = lane.source;
+        Backoff backoff = new Backoff(Config.getInt("retry.backoff.min", 100), Config.getInt("retry.backoff.max", 30000));
+        while (true) {
+            try {
+                int batchSize = lane.batchSize > 0 ? lane.batchSize : tuner.redisBatchSize.get();
+                SourceBatch batch = source.poll(batchSize); // waits for a while if the source is empty
+                backoff.reset();
+                tuner.polls.increment();
+                if (batch.entries.size() >= batchSize) {
+                    tuner.fullPolls.increment();
+                }
+                if (batch.entries.isEmpty()) {
+                    if (source.isFinished()) {
+                        LOG.info("All entries of " + (lanes.size() > 1 ? "lane " + lane.name : "the source") + " have been processed");
+                        logStats();
+                        return true;
+                    }
+                    continue;
+                }
+                readerCounters.in(batch.entries.size());
+                rawQueue.put(new SourceBatch(batch.entries, batch.ack, laneIndex)); // blocks when the workers are behind on this lane
+                readerCounters.out(batch.entries.size());
+                if (laneIndex == 0 && System.currentTimeMillis() > nextStats) {
+                    logStats();
+                }
+            } catch (InterruptedException ex) {
+                LOG.info("Interrupted. Exiting...", ex);
+                return false;
+            } catch (Exception ex) {
+                LOG.error("Unexpected error while reading data", ex);
+                try {
+                    backoff.sleep();
+                } catch (InterruptedException iex) {
+                    LOG.info("Interrupted. Exiting...", iex);
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return entries to the source to be retried later, and acknowledge them
+     * as done for this round
+     *
+     * @param batch
+     */
+    void handleFailure(SourceBatch batch) {
+        try {
+            lanes.get(batch.lane).source.requeue(batch.entries);
+            batch.ack.done(batch.entries.size());
+        } catch (RuntimeException ex) {
+            LOG.error("Failed to return " + batch.entries.size() + " entries to the source", ex);
+        }
+    }
+
+    private synchronized void logStats() {
+        String sourceStats = lanes.size() == 1 ? lanes.get(0).source.getStats()
+                : lanes.stream().map(lane -> lane.name + ": " + lane.source.getStats()).collect(Collectors.joining(", "));
+        LOG.info("Totals since startup (" + sourceStats + "): "
+                + readerCounters.summary() + "; " + enrichCounters.summary() + "; " + writerCounters.summary());
+        nextStats = System.currentTimeMillis() + STATS_INTERVAL_MS;
+    }
+
+    private void awaitWrites() {
+        long deadline = System.currentTimeMillis() + WRITE_SHUTDOWN_TIMEOUT_MS;
+        try {
+            for (InfluxDBConnection influx : router.getConnections()) {
+                if (!influx.awaitWrites(Math.max(0, deadline - System.currentTimeMillis()))) {
+                    LOG.warn("InfluxDB writes to " + influx.getName() + " still in flight after " + WRITE_SHUTDOWN_TIMEOUT_MS + " ms, giving up on them");
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOG.warn("Interrupted while waiting for InfluxDB writes to finish", ex);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void joinAll(List<Thread> threads) {
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+                LOG.warn("Interrupted while waiting for " + t.getName() + " to finish", ex);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package fi.tkgwf.zri.pipeline;
+
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.connection.RedisConnection;
+import fi.tkgwf.zri.metrics.Metrics;
+import fi.tkgwf.zri.utils.Backoff;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads history entries from the head of a redis list, as pushed by
+ * zabbix_redis_exporter. When the queue is empty the source waits for new
+ * entries with a blocking pop, so they are picked up as soon as they arrive.
+ *
+ * In reliable mode the entries are atomically moved to a processing list of
+ * this consumer instead of being popped, and removed from there once they have
+ * been acknowledged. Entries left in the processing list by a crash are
+ * returned to the head of the queue on startup. There is no blocking move
+ * that keeps the processing list in queue order on older redis versions, so
+ * an empty queue is polled with an increasing interval instead.
+ */
+public class RedisListSource implements HistorySource {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final long IDLE_POLL_MIN_MS = 10;
+
+    private final RedisConnection redis;
+    private final String queue;
+    private final String processing;
+    private final long idleWaitSeconds;
+    private final Backoff idlePoll;
+    private final ArrayDeque<BatchAck> inFlight = new ArrayDeque<>(); // in the same order as the processing list
+    private long untrimmed; // acknowledged entries still at the head of the processing list
+
+    public RedisListSource(RedisConnection redis, String queue) {
+        this.redis = redis;
+        this.queue = queue;
+        long idleWaitMs = Config.getInt("redis.batch.wait", 2000);
+        idleWaitSeconds = Math.min(30, Math.max(1, (idleWaitMs + 999) / 1000)); // stay well below the command timeout
+        idlePoll = new Backoff(IDLE_POLL_MIN_MS, idleWaitMs);
+        if (Config.getBoolean("redis.reliable.enable", false)) {
+            String name = Config.get("redis.reliable.consumer");
+            processing = queue + ":processing:" + (name == null || name.isEmpty() ? RedisStreamSource.hostName("redis.reliable.consumer") : name);
+            LOG.info("Using processing list " + processing + " for queue " + queue);
+            long recovered = redis.recover(processing, queue);
+            if (recovered > 0) {
+                LOG.info("Recovered " + recovered + " unacknowledged entries from " + processing + " to queue " + queue);
+            }
+            Metrics.gauge("zri_source_unacked", "Entries taken from the source queue but not yet acknowledged", () -> redis.length(processing), "queue", queue);
+        } else {
+            processing = null;
+        }
+        Metrics.gauge("zri_source_backlog", "Entries waiting in the source queue", () -> redis.length(queue), "queue", queue);
+    }
+
+    @Override
+    public SourceBatch poll(int maxEntries) throws InterruptedException {
+        if (processing == null) {
+            return new SourceBatch(popBatch(maxEntries), BatchAck.NONE);
+        }
+        SourceBatch batch = moveBatch(maxEntries);
+        if (batch.entries.isEmpty()) {
+            Thread.sleep(idlePoll.next());
+        } else {
+            idlePoll.reset();
+        }
+        return batch;
+    }
+
+    private List<String> popBatch(int maxEntries) {
+        List<String> entries = redis.popBatch(queue, maxEntries);
+        if (!entries.isEmpty()) {
+            return entries;
+        }
+        String first = redis.blockingPop(queue, idleWaitSeconds);
+        if (first == null) {
+            return Collections.emptyList();
+        }
+        // pick up whatever else arrived along with it
+        entries = new ArrayList<>(maxEntries);
+        entries.add(first);
+        if (maxEntries > 1) {
+            entries.addAll(redis.popBatch(queue, maxEntries - 1));
+        }
+        return entries;
+    }
+
+    private SourceBatch moveBatch(int maxEntries) {
+        synchronized (inFlight) {
+            List<String> entries = redis.moveBatch(queue, processing, maxEntries);
+            BatchAck ack = new BatchAck(entries.size(), this::acknowledged);
+            if (!entries.isEmpty()) {
+                inFlight.add(ack);
+            }
+            return new SourceBatch(entries, ack);
+        }
+    }
+
+    /**
+     * Removes the completed batches from the head of the processing list. A
+     * batch completed out of order stays in the list until the batches taken
+     * before it are completed, so that the whole prefix can be removed with a
+     * single trim.
+     */
+    private void acknowledged() {
+        synchronized (inFlight) {
+            while (!inFlight.isEmpty() && inFlight.peek().isComplete()) {
+                untrimmed += inFlight.poll().size();
+            }
+            if (untrimmed > 0) {
+                redis.trimHead(processing, untrimmed);
+                untrimmed = 0;
+            }
+        }
+    }
+
+    /**
+     * With the processing list, the entries go back to the head of the queue
+     * in their original order, ahead of newer entries, as if they had never
+     * been taken. Otherwise they are appended to the tail, so that entries
+     * failing over and over don't hold up the rest of the queue.
+     */
+    @Override
+    public void requeue(List<String> entries) {
+        LOG.info("Returning " + entries.size() + " failed entries to queue " + queue);
+        if (processing != null) {
+            redis.pushFront(queue, entries);
+        } else {
+            redis.pushBack(queue, entries);
+        }
+    }
+
+    @Override
+    public String getStats() {
+        return "redis entries per round trip: " + redis.getEntriesPerRoundTrip();
+    }
+}
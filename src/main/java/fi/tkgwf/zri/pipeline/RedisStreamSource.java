@@ -0,0 +1,116 @@
+package fi.tkgwf.zri.pipeline;
+
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.connection.RedisConnection;
+import fi.tkgwf.zri.metrics.Metrics;
+import io.lettuce.core.Consumer;
+import io.lettuce.core.StreamMessage;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads history entries from a redis stream as a member of a consumer group,
+ * so that several instances can share the load. Messages are acknowledged in
+ * bulk once their batch has been written. Messages left unacknowledged by this
+ * consumer, for example by a crash, are processed again on startup, and
+ * messages left unacknowledged by other consumers for too long are taken over.
+ */
+public class RedisStreamSource implements HistorySource {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private final RedisConnection redis;
+    private final String stream;
+    private final String field;
+    private final Consumer<String> consumer;
+    private final long blockMs;
+    private final long claimIdleMs;
+    private final long claimIntervalMs;
+    private String pendingAfter = "0"; // null once the own pending messages have been read
+    private long nextClaim;
+
+    public RedisStreamSource(RedisConnection redis) {
+        this.redis = redis;
+        stream = Config.get("redis.stream.key");
+        field = Config.get("redis.stream.field");
+        String group = Config.get("redis.stream.group");
+        String name = Config.get("redis.stream.consumer");
+        consumer = Consumer.from(group, name == null || name.isEmpty() ? hostName("redis.stream.consumer") : name);
+        blockMs = Math.min(30000, Math.max(1, Config.getInt("redis.batch.wait", 2000))); // stay well below the command timeout
+        claimIdleMs = Config.getInt("redis.stream.claim.idle", 60000);
+        claimIntervalMs = Config.getInt("redis.stream.claim.interval", 30000);
+        if (redis.createGroup(stream, group)) {
+            LOG.info("Created consumer group " + group + " for stream " + stream);
+        }
+        LOG.info("Reading stream " + stream + " as consumer " + consumer.getName() + " of group " + group);
+        Metrics.gauge("zri_source_unacked", "Entries taken from the source queue but not yet acknowledged", () -> redis.pendingCount(stream, group), "queue", stream);
+    }
+
+    /**
+     * @param key config key that names the instance instead
+     * @return host name used as the default name of this instance
+     */
+    static String hostName(String key) {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException ex) {
+            throw new IllegalStateException("Can't determine the host name, set " + key, ex);
+        }
+    }
+
+    @Override
+    public SourceBatch poll(int maxEntries) {
+        if (pendingAfter != null) {
+            List<StreamMessage<String, String>> messages = redis.readOwnPending(consumer, stream, pendingAfter, maxEntries);
+            if (!messages.isEmpty()) {
+                pendingAfter = messages.get(messages.size() - 1).getId();
+                LOG.info("Processing " + messages.size() + " messages left unacknowledged by an earlier run");
+                return toBatch(messages);
+            }
+            pendingAfter = null;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= nextClaim) {
+            nextClaim = now + claimIntervalMs;
+            List<StreamMessage<String, String>> messages = redis.claimIdle(consumer, stream, claimIdleMs, maxEntries);
+            if (!messages.isEmpty()) {
+                nextClaim = now; // there may be more
+                LOG.info("Took over " + messages.size() + " messages left unacknowledged by other consumers");
+                return toBatch(messages);
+            }
+        }
+        return toBatch(redis.readGroup(consumer, stream, maxEntries, blockMs));
+    }
+
+    private SourceBatch toBatch(List<StreamMessage<String, String>> messages) {
+        List<String> ids = new ArrayList<>(messages.size());
+        List<String> entries = new ArrayList<>(messages.size());
+        for (StreamMessage<String, String> message : messages) {
+            ids.add(message.getId());
+            String entry = message.getBody() == null ? null : message.getBody().get(field);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        if (entries.isEmpty()) {
+            redis.ack(stream, consumer.getGroup(), ids); // nothing to process, eg. deleted from the stream since
+            return new SourceBatch(entries, BatchAck.NONE);
+        }
+        return new SourceBatch(entries, new BatchAck(entries.size(), () -> redis.ack(stream, consumer.getGroup(), ids)));
+    }
+
+    @Override
+    public void requeue(List<String> entries) {
+        LOG.info("Returning " + entries.size() + " failed entries to stream " + stream);
+        redis.add(stream, field, entries);
+    }
+
+    @Override
+    public String getStats() {
+        return "redis entries per round trip: " + redis.getEntriesPerRoundTrip();
+    }
+}
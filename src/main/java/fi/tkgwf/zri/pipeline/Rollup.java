@@ -0,0 +1,627 @@
+package fi.tkgwf.zri.pipeline;
+
+import fi.tkgwf.zri.bean.zabbix.Host;
+import fi.tkgwf.zri.bean.zabbix.Item;
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.connection.InfluxDBConnection.Target;
+import fi.tkgwf.zri.connection.InfluxDBRouter;
+import fi.tkgwf.zri.metrics.Counter;
+import fi.tkgwf.zri.metrics.Metrics;
+import fi.tkgwf.zri.utils.LineProtocol;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Downsamples values into min, max, mean, count and last per series over
+ * event time windows, for example 1m, 5m and 1h, and writes each completed
+ * window to its own retention policy or measurement.
+ *
+ * Only the smallest window aggregates values directly. It keeps enough buckets
+ * per series to accept values up to the allowed lateness behind the newest
+ * timestamp seen. Each larger window is built from the completed windows of
+ * the next smaller one, so it needs a single bucket per series. A window is
+ * completed once the watermark, the newest timestamp minus the allowed
+ * lateness, has passed its end. Values arriving after that are dropped as
+ * late. A series also completes its own windows that are more than the
+ * allowed lateness behind its newest value, so fast moving event time, for
+ * example while catching up on a backlog, doesn't depend on how often the
+ * watermark is advanced.
+ *
+ * The state lives in primitive arrays split into shards, each with an open
+ * addressing table from item id to series. The number of series is capped,
+ * values of further series are not rolled up, and a series is removed once all
+ * its windows have been written.
+ *
+ * Values are acknowledged to their source by the writer, not once their
+ * windows are written, so windows still open when the process is killed are
+ * lost. On a clean shutdown they are written as they are.
+ */
+class Rollup implements Runnable {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final int SHARDS = 16;
+    private static final int INITIAL_SERIES = 1024;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final InfluxDBRouter router;
+    private final SpillBuffer spill;
+    private final int batchSize;
+    private final long[] windows; // nanoseconds, ascending, each a multiple of the previous one
+    private final String[] retentionPolicies; // per window, or null to write to the measurement suffixes
+    private final String[] measurementSuffixes; // per window, or null to write to the retention policies
+    private final long lateness;
+    private final int baseBuckets;
+    private final long scanIntervalMs;
+    private final Shard[] shards = new Shard[SHARDS];
+    private final Counter[] points;
+    private final Counter lateValues = Metrics.counter("zri_rollup_late_values_total", "Values dropped by the rollup because their window had already been written");
+    private final Counter droppedValues = Metrics.counter("zri_rollup_dropped_values_total", "Values not rolled up because the max number of series was reached");
+    private volatile long watermark = EMPTY;
+    private Thread thread;
+
+    Rollup(InfluxDBRouter router, SpillBuffer spill) {
+        this.router = router;
+        this.spill = spill;
+        batchSize = router.getDefaultConnection().getBatchSize();
+        String[] names = Config.get("rollup.windows").split(",");
+        windows = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = names[i].trim();
+            windows[i] = TimeUnit.MILLISECONDS.toNanos(parseDuration(names[i]));
+            if (windows[i] <= 0 || i > 0 && (windows[i] <= windows[i - 1] || windows[i] % windows[i - 1] != 0)) {
+                throw new IllegalArgumentException("rollup.windows must be ascending and each a multiple of the previous one: " + Config.get("rollup.windows"));
+            }
+        }
+        boolean toMeasurement = "measurement".equalsIgnoreCase(Config.get("rollup.destination"));
+        retentionPolicies = toMeasurement ? null : new String[names.length];
+        measurementSuffixes = toMeasurement ? new String[names.length] : null;
+        points = new Counter[names.length];
+        for (int i = 0; i < names.length; i++) {
+            if (toMeasurement) {
+                measurementSuffixes[i] = "_" + names[i];
+            } else {
+                retentionPolicies[i] = Config.get("rollup.retentionpolicy.prefix") + names[i];
+            }
+            points[i] = Metrics.counter("zri_rollup_points_total", "Rollup windows written", "window", names[i]);
+        }
+        lateness = TimeUnit.MILLISECONDS.toNanos(Math.max(0, Config.getInt("rollup.lateness", 60000)));
+        baseBuckets = (int) ((lateness + windows[0] - 1) / windows[0]) + 2;
+        scanIntervalMs = Math.max(10, Math.min(1000, TimeUnit.NANOSECONDS.toMillis(windows[0]) / 4));
+        int maxSeries = Math.max(SHARDS, Config.getInt("rollup.series.max", 1000000));
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(maxSeries / SHARDS);
+        }
+        Metrics.gauge("zri_rollup_series", "Series with open rollup windows", this::getSeriesCount);
+        LOG.info("Rolling up values over " + String.join(", ", names) + " windows into "
+                + (toMeasurement ? "measurement suffixes" : "retention policies") + " for up to " + maxSeries + " series");
+    }
+
+    /**
+     * @param duration a number followed by s, m, h or d
+     * @return the duration in milliseconds
+     */
+    static long parseDuration(String duration) {
+        long unit;
+        switch (duration.charAt(duration.length() - 1)) {
+            case 's':
+                unit = 1000;
+                break;
+            case 'm':
+                unit = 60 * 1000;
+                break;
+            case 'h':
+                unit = 60 * 60 * 1000;
+                break;
+            case 'd':
+                unit = 24 * 60 * 60 * 1000;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid duration " + duration + ", expected a number followed by s, m, h or d");
+        }
+        return Long.parseLong(duration.substring(0, duration.length() - 1)) * unit;
+    }
+
+    void start() {
+        thread = new Thread(this, "rollup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the background thread and writes all windows, complete or not
+     */
+    void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                LOG.warn("Interrupted while waiting for the rollup thread to finish", ex);
+                Thread.currentThread().interrupt();
+            }
+        }
+        completeWindows(Long.MAX_VALUE);
+    }
+
+    /**
+     * Add a value to the open windows of its series
+     *
+     * @param value
+     */
+    void add(EnrichedValue value) {
+        if (Double.isNaN(value.value) || Double.isInfinite(value.value)) {
+            return;
+        }
+        shards[(int) mix(value.itemId) & (SHARDS - 1)].add(value);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(scanIntervalMs);
+                long newest = EMPTY;
+                for (Shard shard : shards) {
+                    newest = Math.max(newest, shard.newest);
+                }
+                if (newest == EMPTY) {
+                    continue;
+                }
+                // a host with its clock ahead must not get everyone else's values dropped as late
+                long next = Math.min(newest, System.currentTimeMillis() * 1_000_000) - lateness;
+                if (next > watermark) {
+                    watermark = next;
+                    completeWindows(next);
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOG.info("Interrupted. Exiting...", ex);
+        }
+    }
+
+    private void completeWindows(long until) {
+        for (Shard shard : shards) {
+            shard.complete(until);
+            send(shard.drain());
+        }
+    }
+
+    private long getSeriesCount() {
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.size;
+        }
+        return count;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        return key ^ key >>> 33;
+    }
+
+    /**
+     * Write out completed windows
+     */
+    private void send(Map<Target, Output> output) {
+        for (Map.Entry<Target, Output> e : output.entrySet()) {
+            Output out = e.getValue();
+            for (int i = 0; i < out.batches.size(); i++) {
+                write(e.getKey(), out.batches.get(i), out.batchLines.get(i));
+            }
+            if (out.lines > 0) {
+                write(e.getKey(), out.buffer.toString(), out.lines);
+            }
+        }
+    }
+
+    private void write(Target target, String lines, int count) {
+        if (spill != null && spill.isDiverting(target) && spill.append(target, lines, count)) {
+            return;
+        }
+        try {
+            target.getConnection().writeAsync(target, lines, false).whenComplete((result, ex) -> {
+                if (ex == null) {
+                    return;
+                }
+                if (spill != null) {
+                    spill.writeFailed(target);
+                    if (spill.append(target, lines, count)) {
+                        return;
+                    }
+                }
+                LOG.error("Failed to write " + count + " rollup points to " + target + ", they will be lost!", ex);
+            });
+        } catch (InterruptedException ex) {
+            LOG.error("Interrupted while writing " + count + " rollup points to " + target + ", they will be lost!", ex);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Rollup lines waiting to be written to a target
+     */
+    private static class Output {
+
+        final StringBuilder buffer = new StringBuilder();
+        final List<String> batches = new ArrayList<>();
+        final List<Integer> batchLines = new ArrayList<>();
+        int lines;
+    }
+
+    /**
+     * Aggregates of a number of windows, one per index
+     */
+    private static class Buckets {
+
+        long[] start; // EMPTY if the bucket is not in use
+        double[] min;
+        double[] max;
+        double[] sum;
+        double[] last;
+        long[] lastTime;
+        long[] count;
+
+        Buckets(int capacity) {
+            start = new long[0];
+            min = new double[0];
+            max = new double[0];
+            sum = new double[0];
+            last = new double[0];
+            lastTime = new long[0];
+            count = new long[0];
+            grow(capacity);
+        }
+
+        void grow(int capacity) {
+            int old = start.length;
+            start = Arrays.copyOf(start, capacity);
+            Arrays.fill(start, old, capacity, EMPTY);
+            min = Arrays.copyOf(min, capacity);
+            max = Arrays.copyOf(max, capacity);
+            sum = Arrays.copyOf(sum, capacity);
+            last = Arrays.copyOf(last, capacity);
+            lastTime = Arrays.copyOf(lastTime, capacity);
+            count = Arrays.copyOf(count, capacity);
+        }
+
+        void open(int i, long windowStart) {
+            start[i] = windowStart;
+            min[i] = Double.POSITIVE_INFINITY;
+            max[i] = Double.NEGATIVE_INFINITY;
+            sum[i] = 0;
+            count[i] = 0;
+            lastTime[i] = EMPTY;
+        }
+
+        void add(int i, long time, double value) {
+            min[i] = Math.min(min[i], value);
+            max[i] = Math.max(max[i], value);
+            sum[i] += value;
+            count[i]++;
+            if (time >= lastTime[i]) {
+                last[i] = value;
+                lastTime[i] = time;
+            }
+        }
+
+        void merge(int i, Buckets from, int j) {
+            min[i] = Math.min(min[i], from.min[j]);
+            max[i] = Math.max(max[i], from.max[j]);
+            sum[i] += from.sum[j];
+            count[i] += from.count[j];
+            if (from.lastTime[j] >= lastTime[i]) {
+                last[i] = from.last[j];
+                lastTime[i] = from.lastTime[j];
+            }
+        }
+
+        void move(int to, int from) {
+            start[to] = start[from];
+            min[to] = min[from];
+            max[to] = max[from];
+            sum[to] = sum[from];
+            last[to] = last[from];
+            lastTime[to] = lastTime[from];
+            count[to] = count[from];
+            start[from] = EMPTY;
+        }
+    }
+
+    /**
+     * The series of a share of the items. Series are stored densely in index
+     * order; the table maps item ids to series indexes with linear probing.
+     */
+    private class Shard {
+
+        private final int maxSeries;
+        private long[] keys; // item id of each table entry, EMPTY if free
+        private int[] slots; // series index of each table entry
+        private long[] itemIds;
+        private Host[] hosts;
+        private Item[] items;
+        private final Buckets base;
+        private final Buckets[] levels; // one bucket per series for each window after the first
+        private long[] closedUntil; // per series, windows ending at or before this have been written
+        private final Map<Target, Target[]> targets = new HashMap<>(); // raw target to the target of each window
+        private Map<Target, Output> output = new HashMap<>();
+        private volatile long newest = EMPTY; // newest timestamp seen, written while holding the lock
+        private long nextDue = Long.MAX_VALUE; // earliest end of a window in use
+        private volatile int size;
+
+        Shard(int maxSeries) {
+            this.maxSeries = maxSeries;
+            int capacity = Math.min(INITIAL_SERIES, maxSeries);
+            keys = new long[tableSize(capacity)];
+            Arrays.fill(keys, EMPTY);
+            slots = new int[keys.length];
+            itemIds = new long[capacity];
+            hosts = new Host[capacity];
+            items = new Item[capacity];
+            closedUntil = new long[capacity];
+            base = new Buckets(capacity * baseBuckets);
+            levels = new Buckets[windows.length - 1];
+            for (int i = 0; i < levels.length; i++) {
+                levels[i] = new Buckets(capacity);
+            }
+        }
+
+        private int tableSize(int capacity) {
+            return Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1; // load factor at most 0.5
+        }
+
+        synchronized void add(EnrichedValue value) {
+            long time = value.timestamp;
+            if (time > newest) {
+                newest = time;
+            }
+            long window = windows[0];
+            long start = time - Math.floorMod(time, window);
+            if (start + window <= watermark) {
+                lateValues.inc();
+                return;
+            }
+            int s = series(value.itemId);
+            if (s < 0) {
+                droppedValues.inc();
+                return;
+            }
+            if (start + window <= closedUntil[s]) {
+                lateValues.inc();
+                return;
+            }
+            hosts[s] = value.host;
+            items[s] = value.item;
+            int b = s * baseBuckets + (int) Math.floorMod(Math.floorDiv(time, window), (long) baseBuckets);
+            if (base.start[b] != start) {
+                if (base.start[b] > start) {
+                    lateValues.inc(); // the bucket already holds a later window
+                    return;
+                }
+                // frees the bucket if it holds an earlier window, as there are enough buckets to cover the allowed lateness
+                nextDue = Math.min(nextDue, completeSeries(s, time - lateness));
+                base.open(b, start);
+                nextDue = Math.min(nextDue, start + window);
+            }
+            base.add(b, time, value.value);
+        }
+
+        /**
+         * @return the index of the series of the item, or -1 if it is new and
+         * the shard is full
+         */
+        private int series(long itemId) {
+            int mask = keys.length - 1;
+            int t = (int) mix(itemId) & mask;
+            while (keys[t] != EMPTY) {
+                if (keys[t] == itemId) {
+                    return slots[t];
+                }
+                t = (t + 1) & mask;
+            }
+            if (size >= maxSeries) {
+                return -1;
+            }
+            if (size == itemIds.length) {
+                grow(Math.min(maxSeries, size * 2));
+                return series(itemId);
+            }
+            int s = size++;
+            keys[t] = itemId;
+            slots[t] = s;
+            itemIds[s] = itemId;
+            closedUntil[s] = EMPTY;
+            return s;
+        }
+
+        private void grow(int capacity) {
+            itemIds = Arrays.copyOf(itemIds, capacity);
+            hosts = Arrays.copyOf(hosts, capacity);
+            items = Arrays.copyOf(items, capacity);
+            closedUntil = Arrays.copyOf(closedUntil, capacity);
+            base.grow(capacity * baseBuckets);
+            for (Buckets level : levels) {
+                level.grow(capacity);
+            }
+            keys = new long[tableSize(capacity)];
+            Arrays.fill(keys, EMPTY);
+            slots = new int[keys.length];
+            int mask = keys.length - 1;
+            for (int s = 0; s < size; s++) {
+                int t = (int) mix(itemIds[s]) & mask;
+                while (keys[t] != EMPTY) {
+                    t = (t + 1) & mask;
+                }
+                keys[t] = itemIds[s];
+                slots[t] = s;
+            }
+        }
+
+        private int find(long itemId) {
+            int mask = keys.length - 1;
+            int t = (int) mix(itemId) & mask;
+            while (keys[t] != itemId) {
+                t = (t + 1) & mask;
+            }
+            return t;
+        }
+
+        /**
+         * Remove a series, moving the last series into its place
+         */
+        private void remove(int s) {
+            int mask = keys.length - 1;
+            // backward shift deletion keeps the probe sequences intact without tombstones
+            int free = find(itemIds[s]);
+            keys[free] = EMPTY;
+            for (int t = (free + 1) & mask; keys[t] != EMPTY; t = (t + 1) & mask) {
+                int home = (int) mix(keys[t]) & mask;
+                if (((t - home) & mask) >= ((t - free) & mask)) {
+                    keys[free] = keys[t];
+                    slots[free] = slots[t];
+                    keys[t] = EMPTY;
+                    free = t;
+                }
+            }
+            int last = --size;
+            if (s != last) {
+                itemIds[s] = itemIds[last];
+                hosts[s] = hosts[last];
+                items[s] = items[last];
+                closedUntil[s] = closedUntil[last];
+                for (int k = 0; k < baseBuckets; k++) {
+                    base.move(s * baseBuckets + k, last * baseBuckets + k);
+                }
+                for (Buckets level : levels) {
+                    level.move(s, last);
+                }
+                slots[find(itemIds[s])] = s;
+            }
+            hosts[last] = null;
+            items[last] = null;
+        }
+
+        /**
+         * Write the windows that end at or before the given time
+         */
+        synchronized void complete(long until) {
+            if (until < nextDue) {
+                return;
+            }
+            long due = Long.MAX_VALUE;
+            for (int s = size - 1; s >= 0; s--) { // backwards, as removing a series moves the last one into its place
+                long seriesDue = completeSeries(s, until);
+                if (seriesDue == Long.MAX_VALUE && closedUntil[s] <= until) {
+                    remove(s);
+                }
+                due = Math.min(due, seriesDue);
+            }
+            nextDue = due;
+        }
+
+        /**
+         * Take the completed windows to be written
+         */
+        synchronized Map<Target, Output> drain() {
+            Map<Target, Output> result = output;
+            output = new HashMap<>();
+            return result;
+        }
+
+        /**
+         * Write the windows of a series that end at or before the given time,
+         * in order
+         *
+         * @return the end of the earliest window still open, or
+         * Long.MAX_VALUE if there are none
+         */
+        private long completeSeries(int s, long until) {
+            while (true) {
+                int oldest = -1;
+                for (int b = s * baseBuckets; b < (s + 1) * baseBuckets; b++) {
+                    if (base.start[b] != EMPTY && (oldest < 0 || base.start[b] < base.start[oldest])) {
+                        oldest = b;
+                    }
+                }
+                if (oldest < 0 || base.start[oldest] + windows[0] > until) {
+                    break;
+                }
+                complete(0, s, base, oldest);
+            }
+            for (int w = 1; w < windows.length; w++) {
+                Buckets level = levels[w - 1];
+                if (level.start[s] != EMPTY && level.start[s] + windows[w] <= until) {
+                    complete(w, s, level, s);
+                }
+            }
+            closedUntil[s] = Math.max(closedUntil[s], until - Math.floorMod(until, windows[0]));
+            long due = Long.MAX_VALUE;
+            for (int b = s * baseBuckets; b < (s + 1) * baseBuckets; b++) {
+                if (base.start[b] != EMPTY) {
+                    due = Math.min(due, base.start[b] + windows[0]);
+                }
+            }
+            for (int w = 1; w < windows.length; w++) {
+                if (levels[w - 1].start[s] != EMPTY) {
+                    due = Math.min(due, levels[w - 1].start[s] + windows[w]);
+                }
+            }
+            return due;
+        }
+
+        /**
+         * Write a window and merge it into the next larger one
+         */
+        private void complete(int window, int s, Buckets buckets, int i) {
+            emit(window, hosts[s], items[s], buckets, i);
+            if (window + 1 < windows.length) {
+                Buckets next = levels[window];
+                long start = buckets.start[i] - Math.floorMod(buckets.start[i], windows[window + 1]);
+                if (next.start[s] != EMPTY && next.start[s] != start) {
+                    complete(window + 1, s, next, s); // an earlier window whose last part had no values
+                }
+                if (next.start[s] == EMPTY) {
+                    next.open(s, start);
+                }
+                next.merge(s, buckets, i);
+            }
+            buckets.start[i] = EMPTY;
+        }
+
+        /**
+         * Encode a completed window into the output buffer of its target
+         */
+        private void emit(int window, Host host, Item item, Buckets buckets, int i) {
+            Target raw = router.route(host, item);
+            Target[] windowTargets = targets.get(raw);
+            if (windowTargets == null) {
+                windowTargets = new Target[windows.length];
+                for (int w = 0; w < windows.length; w++) {
+                    windowTargets[w] = retentionPolicies == null ? raw : raw.withRetentionPolicy(retentionPolicies[w]);
+                }
+                targets.put(raw, windowTargets);
+            }
+            Output out = output.get(windowTargets[window]);
+            if (out == null) {
+                out = new Output();
+                output.put(windowTargets[window], out);
+            }
+            LineProtocol.appendSummary(out.buffer, host, item, measurementSuffixes == null ? null : measurementSuffixes[window], buckets.start[i],
+                    buckets.min[i], buckets.max[i], buckets.sum[i], buckets.count[i], buckets.last[i]);
+            points[window].inc();
+            if (++out.lines >= batchSize) {
+                out.batches.add(out.buffer.toString());
+                out.batchLines.add(out.lines);
+                out.buffer.setLength(0);
+                out.lines = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package fi.tkgwf.zri.pipeline;
+
+import java.util.List;
+
+/**
+ * Entries taken from a {@link HistorySource}, along with the acknowledgement
+ * handle of the batch they belong to
+ */
+public class SourceBatch {
+
+    public final List<String> entries;
+    public final BatchAck ack;
+    /**
+     * Index of the pipeline lane the entries came from
+     */
+    public final int lane;
+    /**
+     * True for entries that waited for zabbix lookups and are processed again
+     */
+    final boolean retry;
+
+    public SourceBatch(List<String> entries, BatchAck ack) {
+        this(entries, ack, 0);
+    }
+
+    public SourceBatch(List<String> entries, BatchAck ack, int lane) {
+        this(entries, ack, lane, false);
+    }
+
+    private SourceBatch(List<String> entries, BatchAck ack, int lane, boolean retry) {
+        this.entries = entries;
+        this.ack = ack;
+        this.lane = lane;
+        this.retry = retry;
+    }
+
+    /**
+     * @param subset some of the entries of this batch
+     * @return a batch of the given entries sharing the acknowledgement and
+     * lane of this batch
+     */
+    public SourceBatch subset(List<String> subset) {
+        return new SourceBatch(subset, ack, lane);
+    }
+
+    /**
+     * @return the same entries marked as processed again
+     */
+    SourceBatch retry() {
+        return new SourceBatch(entries, ack, lane, true);
+    }
+}
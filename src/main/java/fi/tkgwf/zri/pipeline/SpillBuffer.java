@@ -0,0 +1,336 @@
+package fi.tkgwf.zri.pipeline;
+
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.connection.InfluxDBConnection;
+import fi.tkgwf.zri.connection.InfluxDBConnection.Target;
+import fi.tkgwf.zri.connection.InfluxDBRouter;
+import fi.tkgwf.zri.connection.InfluxDBWriteException;
+import fi.tkgwf.zri.metrics.Counter;
+import fi.tkgwf.zri.metrics.Metrics;
+import fi.tkgwf.zri.utils.Backoff;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Local write-ahead buffer for line protocol batches that can't be written to
+ * InfluxDB right now.
+ *
+ * Batches are appended to segment files and fsynced before
+ * {@link #append} returns, so their source entries can be acknowledged. A new
+ * segment is started when the current one is full, and appends are refused
+ * once all segments together reach the size cap. A background thread replays
+ * the segments oldest first at a limited rate and deletes each one once it has
+ * been written. A segment that was only partly replayed when the process
+ * stopped is replayed again from the start, which InfluxDB treats as
+ * overwriting the same points.
+ *
+ * While an InfluxDB backend is failing or slow the buffer is diverting for
+ * that backend: writers should spill its batches straight away instead of
+ * trying it first. The replay thread ends that once its writes to the backend
+ * succeed quickly again. Each record remembers its target, so it is replayed
+ * to the backend, database and retention policy it was meant for.
+ */
+class SpillBuffer implements Runnable {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final String PREFIX = "spill-";
+    private static final String SUFFIX = ".seg";
+    private static final int RECORD_HEADER_BYTES = 10; // payload length, line count and target length
+
+    private final InfluxDBRouter router;
+    private final Path dir;
+    private final long segmentSize;
+    private final long maxSize;
+    private final long latencyThresholdNanos;
+    private final long replayNanosPerLine;
+    private final ArrayDeque<Path> segments = new ArrayDeque<>(); // oldest first, excluding the current one
+    private final Counter spilledLines = Metrics.counter("zri_spill_written_lines_total", "Lines written to the local spill buffer");
+    private final Counter replayedLines = Metrics.counter("zri_spill_replayed_lines_total", "Lines replayed from the local spill buffer to InfluxDB");
+    private final Counter refusedLines = Metrics.counter("zri_spill_refused_lines_total", "Lines that didn't fit in the local spill buffer");
+    private FileChannel current;
+    private Path currentPath;
+    private long currentSeq;
+    private final Set<InfluxDBConnection> diverting = ConcurrentHashMap.newKeySet();
+    private volatile long totalBytes; // updated while holding the lock
+
+    SpillBuffer(InfluxDBRouter router) throws IOException {
+        this.router = router;
+        dir = Paths.get(Config.get("spill.dir"));
+        segmentSize = Math.max(1 << 20, Config.getInt("spill.segment.mb", 64) * (1L << 20));
+        maxSize = Math.max(segmentSize, Config.getInt("spill.max.mb", 1024) * (1L << 20));
+        latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(Config.getInt("spill.latency.threshold", 10000));
+        replayNanosPerLine = 1_000_000_000L / Math.max(1, Config.getInt("spill.replay.rate", 50000));
+        Files.createDirectories(dir);
+        List<Path> existing = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            stream.forEach(existing::add);
+        }
+        existing.sort((a, b) -> Long.compare(sequence(a), sequence(b)));
+        for (Path p : existing) {
+            segments.add(p);
+            totalBytes += Files.size(p);
+            currentSeq = sequence(p);
+        }
+        if (!segments.isEmpty()) {
+            LOG.info("Found " + segments.size() + " spilled segments (" + totalBytes + " bytes) to replay in " + dir);
+        }
+        Metrics.gauge("zri_spill_bytes", "Bytes waiting in the local spill buffer", this::getTotalBytes);
+        Metrics.gauge("zri_spill_diverting", "InfluxDB backends whose writes currently go straight to the local spill buffer", diverting::size);
+    }
+
+    private static long sequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "spill-replay");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @param target
+     * @return true if writers should spill without trying the backend of the
+     * target first
+     */
+    boolean isDiverting(Target target) {
+        return !diverting.isEmpty() && diverting.contains(target.getConnection());
+    }
+
+    /**
+     * @param target
+     * @param writeNanos how long a successful InfluxDB write took
+     */
+    void writeCompleted(Target target, long writeNanos) {
+        if (writeNanos > latencyThresholdNanos && diverting.add(target.getConnection())) {
+            LOG.warn("InfluxDB write to " + target + " took " + writeNanos / 1000000 + " ms, spilling to disk until it speeds up");
+        }
+    }
+
+    void writeFailed(Target target) {
+        if (diverting.add(target.getConnection())) {
+            LOG.warn("InfluxDB write to " + target + " failed, spilling to disk until it recovers");
+        }
+    }
+
+    /**
+     * Append a batch of lines and fsync it
+     *
+     * @param target where the lines are to be written
+     * @param buffer line protocol
+     * @param lines number of lines in the buffer
+     * @return false if the batch could not be stored
+     */
+    synchronized boolean append(Target target, String buffer, int lines) {
+        byte[] payload = buffer.getBytes(StandardCharsets.UTF_8);
+        byte[] id = target.getId().getBytes(StandardCharsets.UTF_8);
+        long size = RECORD_HEADER_BYTES + id.length + payload.length;
+        if (totalBytes + size > maxSize) {
+            refusedLines.add(lines);
+            return false;
+        }
+        try {
+            if (current == null || current.size() + size > segmentSize) {
+                rotate();
+            }
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+            header.putInt(payload.length).putInt(lines).putShort((short) id.length);
+            header.flip();
+            ByteBuffer[] record = {header, ByteBuffer.wrap(id), ByteBuffer.wrap(payload)};
+            while (record[2].hasRemaining()) {
+                current.write(record);
+            }
+            current.force(false);
+        } catch (IOException ex) {
+            LOG.error("Failed to spill " + lines + " lines to " + currentPath, ex);
+            closeCurrent();
+            refusedLines.add(lines);
+            return false;
+        }
+        totalBytes += size;
+        spilledLines.add(lines);
+        return true;
+    }
+
+    /**
+     * Closes the current segment, making it available for replay, and starts
+     * a new one
+     */
+    private void rotate() throws IOException {
+        closeCurrent();
+        currentPath = dir.resolve(PREFIX + (++currentSeq) + SUFFIX);
+        current = FileChannel.open(currentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        syncDirectory();
+    }
+
+    /**
+     * Make a newly created segment file itself durable, not only its data
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            LOG.debug("Can't sync the spill directory " + dir + " on this platform", ex); // eg. Windows
+        }
+    }
+
+    private void closeCurrent() {
+        if (current == null) {
+            return;
+        }
+        try {
+            current.close();
+        } catch (IOException ex) {
+            LOG.warn("Failed to close " + currentPath, ex);
+        }
+        segments.add(currentPath);
+        current = null;
+    }
+
+    /**
+     * @return the oldest segment that can be replayed, or null if there is
+     * nothing to replay
+     */
+    private synchronized Path nextSegment() throws IOException {
+        if (segments.isEmpty() && current != null && current.size() > 0) {
+            closeCurrent();
+        }
+        return segments.peek();
+    }
+
+    private synchronized void replayed(Path segment, long bytes) throws IOException {
+        Files.deleteIfExists(segment);
+        segments.remove(segment);
+        totalBytes -= bytes;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public void run() {
+        Backoff backoff = new Backoff(Config.getInt("retry.backoff.min", 100), Config.getInt("retry.backoff.max", 30000));
+        try {
+            while (true) {
+                Path segment;
+                try {
+                    segment = nextSegment();
+                } catch (IOException ex) {
+                    LOG.error("Failed to look for spilled segments to replay, retrying", ex);
+                    backoff.sleep();
+                    continue;
+                }
+                if (segment == null) {
+                    diverting.clear(); // nothing has been spilled recently, so try InfluxDB again
+                    Thread.sleep(1000);
+                    continue;
+                }
+                try {
+                    replay(segment, backoff);
+                } catch (IOException ex) {
+                    LOG.error("Failed to replay spilled segment " + segment + ", skipping it", ex);
+                    try {
+                        replayed(segment, Files.exists(segment) ? Files.size(segment) : 0);
+                    } catch (IOException ex2) {
+                        LOG.error("Failed to remove spilled segment " + segment + ", retrying", ex2);
+                        backoff.sleep();
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOG.info("Interrupted. Exiting...", ex);
+        }
+    }
+
+    private void replay(Path segment, Backoff backoff) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        long replayedTotal = 0;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+            StringBuilder sb = new StringBuilder();
+            long nextAllowed = System.nanoTime();
+            while (true) {
+                header.clear();
+                if (readFully(channel, header) < RECORD_HEADER_BYTES) {
+                    break;
+                }
+                header.flip();
+                int length = header.getInt();
+                int lines = header.getInt();
+                int idLength = header.getShort();
+                if (length < 0 || idLength < 0 || channel.position() + idLength + length > size) {
+                    LOG.warn("Truncated record in spilled segment " + segment + ", ignoring the rest of it");
+                    break;
+                }
+                ByteBuffer id = ByteBuffer.allocate(idLength);
+                readFully(channel, id);
+                Target target = router.target(new String(id.array(), StandardCharsets.UTF_8));
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(channel, payload);
+                sb.setLength(0);
+                sb.append(new String(payload.array(), StandardCharsets.UTF_8));
+                long wait = nextAllowed - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                while (true) {
+                    long writeStart = System.nanoTime();
+                    try {
+                        target.getConnection().write(target, sb);
+                        backoff.reset();
+                        if (System.nanoTime() - writeStart <= latencyThresholdNanos) {
+                            diverting.remove(target.getConnection());
+                        }
+                        break;
+                    } catch (InfluxDBWriteException ex) {
+                        if (!ex.isRetryable()) {
+                            LOG.error("InfluxDB rejected " + lines + " spilled lines for " + target + ", they will be lost!", ex);
+                            break;
+                        }
+                        LOG.debug("Failed to replay " + lines + " spilled lines, retrying", ex);
+                        backoff.sleep();
+                    } catch (RuntimeException ex) {
+                        LOG.debug("Failed to replay " + lines + " spilled lines, retrying", ex);
+                        backoff.sleep();
+                    }
+                }
+                replayedLines.add(lines);
+                replayedTotal += lines;
+                nextAllowed = Math.max(nextAllowed, System.nanoTime() - 1_000_000_000L) + lines * replayNanosPerLine;
+            }
+            replayed(segment, size);
+        }
+        LOG.info("Replayed " + replayedTotal + " spilled lines from " + segment.getFileName() + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,56 @@
+package fi.tkgwf.zri.pipeline;
+
+import fi.tkgwf.zri.metrics.Counter;
+import fi.tkgwf.zri.metrics.Metrics;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Thread-safe counters for a single pipeline stage, exposed as metrics
+ */
+public class StageCounters {
+
+    public enum SkipReason {
+        MALFORMED, IGNORED_TYPE, UNKNOWN_ITEM, UNKNOWN_HOST, INVALID_VALUE, UNCHANGED
+    }
+
+    private final String stage;
+    private final Counter in;
+    private final Counter out;
+    private final Counter failed;
+    private final Map<SkipReason, Counter> skipped = new EnumMap<>(SkipReason.class);
+
+    public StageCounters(String stage) {
+        this.stage = stage;
+        in = Metrics.counter("zri_stage_in_total", "Entries received by a pipeline stage", "stage", stage);
+        out = Metrics.counter("zri_stage_out_total", "Entries passed on by a pipeline stage", "stage", stage);
+        failed = Metrics.counter("zri_stage_failed_total", "Entries that failed in a pipeline stage and were requeued or lost", "stage", stage);
+        for (SkipReason reason : SkipReason.values()) {
+            skipped.put(reason, Metrics.counter("zri_stage_skipped_total", "Entries discarded by a pipeline stage", "stage", stage, "reason", reason.name().toLowerCase()));
+        }
+    }
+
+    public void in(long count) {
+        in.add(count);
+    }
+
+    public void out(long count) {
+        out.add(count);
+    }
+
+    public void skipped(SkipReason reason) {
+        skipped.get(reason).inc();
+    }
+
+    public void failed(long count) {
+        failed.add(count);
+    }
+
+    /**
+     * @return a human readable summary of the counters since startup
+     */
+    public String summary() {
+        long skippedTotal = skipped.values().stream().mapToLong(Counter::get).sum();
+        return stage + ": in " + in.get() + ", out " + out.get() + ", skipped " + skippedTotal + ", failed " + failed.get();
+    }
+}
@@ -0,0 +1,418 @@
+package fi.tkgwf.zri.pipeline;
+
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.connection.InfluxDBConnection;
+import fi.tkgwf.zri.connection.InfluxDBConnection.Target;
+import fi.tkgwf.zri.connection.InfluxDBRouter;
+import fi.tkgwf.zri.connection.InfluxDBWriteException;
+import fi.tkgwf.zri.metrics.Histogram;
+import fi.tkgwf.zri.metrics.Metrics;
+import fi.tkgwf.zri.pipeline.StageCounters.SkipReason;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Collects enriched values into one batch per write target and writes each
+ * batch to InfluxDB as line protocol when it is full or old enough. The values
+ * of a batch are acknowledged to their source once the batch has been written.
+ *
+ * Values come off the source in arrival order, which mixes many series in
+ * every batch. Unless influxdb.batch.sort is false, a batch is sorted by item,
+ * which is one series, and by timestamp within the series when it is encoded,
+ * so that InfluxDB gets the points of each series together and in order, and
+ * the repeated series keys compress better. The sort is done once per write on
+ * at most a few batches worth of values, so its cost is bounded by the batch
+ * size rather than growing with the flush interval.
+ *
+ * A batch for a backend that already has its max number of writes in flight
+ * is kept buffering instead of blocking the writer, so a slow backend doesn't
+ * hold up the others until its buffer grows to several batches.
+ *
+ * The batch size and flush interval are read from the tuner for each batch,
+ * so they can change while running.
+ *
+ * With the spill buffer enabled, writes give up after the configured number of
+ * attempts so that failed batches can be spilled. A failed batch that the spill
+ * buffer refuses is handed back to the writer thread and written again,
+ * retrying until it is written, when failed writes are to be retried.
+ */
+class WriterStage implements Runnable {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final int MAX_BUFFERED_BATCHES = 4;
+    private static final long SEND_RETRY_MS = 10;
+
+    private final Pipeline pipeline;
+    private final InfluxDBRouter router;
+    private final InfluxDBConnection encoder;
+    private final StageCounters counters;
+    private final AutoTuner tuner;
+    private final boolean retryWrites;
+    private final SpillBuffer spill;
+    private final Rollup rollup;
+    private final boolean writeRaw;
+    private final DeadbandFilter deadband;
+    private final boolean sort;
+    private final Map<Target, Batch> batches = new HashMap<>();
+    private final ConcurrentLinkedQueue<Rewrite> rewrites = new ConcurrentLinkedQueue<>();
+    private final Histogram[] lags;
+
+    /**
+     * @param pipeline
+     * @param router
+     * @param counters
+     * @param retryWrites if true, failed writes are retried until they succeed
+     * instead of dropping the values
+     * @param spill where to put batches that can't be written right now, or
+     * null
+     * @param rollup where to aggregate the values, or null
+     * @param writeRaw if false, values are only passed to the rollup
+     * @param deadband filter for the values to write, or null
+     */
+    WriterStage(Pipeline pipeline, InfluxDBRouter router, StageCounters counters, boolean retryWrites, SpillBuffer spill, Rollup rollup, boolean writeRaw,
+            DeadbandFilter deadband) {
+        this.pipeline = pipeline;
+        this.router = router;
+        this.encoder = router.getDefaultConnection();
+        this.counters = counters;
+        this.retryWrites = retryWrites;
+        this.spill = spill;
+        this.rollup = rollup;
+        this.writeRaw = writeRaw;
+        this.deadband = deadband;
+        this.tuner = pipeline.tuner;
+        this.sort = Config.getBoolean("influxdb.batch.sort", true);
+        this.lags = pipeline.lanes.stream()
+                .map(lane -> Metrics.histogram("zri_lag_seconds", "Time from the zabbix timestamp of a value until it was passed to the InfluxDB writer", "lane", lane.name))
+                .toArray(Histogram[]::new);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                rewrite();
+                EnrichedBatch enriched = pipeline.writeQueue.poll(flushDue(false), TimeUnit.MILLISECONDS);
+                if (enriched == null) {
+                    if (pipeline.enrichDone) {
+                        break;
+                    }
+                    continue;
+                }
+                List<EnrichedValue> values = enriched.values;
+                Histogram lag = lags[enriched.lane];
+                counters.in(values.size());
+                long nowNanos = System.currentTimeMillis() * 1_000_000;
+                for (EnrichedValue v : values) {
+                    if (rollup != null) {
+                        rollup.add(v);
+                        if (!writeRaw) {
+                            counters.out(1);
+                            v.ack.done(1);
+                            continue;
+                        }
+                    }
+                    if (deadband != null && deadband.suppress(v)) {
+                        counters.skipped(SkipReason.UNCHANGED);
+                        v.ack.done(1);
+                        continue;
+                    }
+                    if (!InfluxDBConnection.isWritable(v.value)) {
+                        counters.skipped(SkipReason.INVALID_VALUE);
+                        v.ack.done(1);
+                        continue;
+                    }
+                    Target target = router.route(v.host, v.item);
+                    Batch batch = batches.get(target);
+                    if (batch == null) {
+                        batch = new Batch(target, Math.min(encoder.getBatchSize(), 100000) * 128);
+                        batches.put(target, batch);
+                    }
+                    batch.add(v);
+                    lag.observe((nowNanos - v.timestamp) / 1e9);
+                    if (batch.lines == 1) {
+                        batch.started = System.currentTimeMillis();
+                        batch.flushAt = tuner.influxBatchSize.get();
+                    }
+                    if (batch.lines >= batch.flushAt) {
+                        int batchSize = tuner.influxBatchSize.get();
+                        tuner.sizeFlushes.increment();
+                        if (!flush(batch, batch.lines >= batchSize * MAX_BUFFERED_BATCHES)) {
+                            batch.flushAt = batch.lines + batchSize; // try again once another batch worth has been buffered
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOG.info("Interrupted. Exiting...", ex);
+        } finally {
+            boolean interrupted = Thread.interrupted(); // write out what is buffered before exiting either way
+            flushDue(true);
+            try {
+                rewrite();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Flush the batches that are full or old enough, or all of them
+     *
+     * @param all
+     * @return milliseconds until the next batch is due
+     */
+    private long flushDue(boolean all) {
+        long timeout = Pipeline.POLL_TIMEOUT_MS;
+        long now = System.currentTimeMillis();
+        int batchSize = tuner.influxBatchSize.get();
+        long batchTimeMs = tuner.influxBatchTime.get();
+        for (Batch batch : batches.values()) {
+            if (batch.lines == 0) {
+                continue;
+            }
+            long due = batch.lines >= batchSize ? 0 : batch.started + batchTimeMs - now;
+            if ((all || due <= 0) && !flush(batch, all)) {
+                due = SEND_RETRY_MS;
+            }
+            if (batch.lines > 0) {
+                timeout = Math.min(timeout, Math.max(due, 0));
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * Hand the buffered lines over to InfluxDB, or to the spill buffer while
+     * the backend is struggling. The values are acknowledged once the write
+     * has completed.
+     *
+     * @param batch
+     * @param block if false and the backend has its max number of writes in
+     * flight, the lines are kept buffered
+     * @return false if the lines are still buffered
+     */
+    private boolean flush(Batch batch, boolean block) {
+        Target target = batch.target;
+        int count = batch.lines;
+        if (spill != null && spill.isDiverting(target) && spill.append(target, batch.encode(encoder, sort), count)) {
+            counters.out(count);
+            acknowledge(batch.reset());
+            return true;
+        }
+        long start = System.nanoTime();
+        CompletableFuture<Void> write;
+        boolean reliable = retryWrites && spill == null;
+        if (block) {
+            try {
+                write = target.getConnection().writeAsync(target, batch.encode(encoder, sort), reliable);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt(); // kept buffered for the final flush when the writer exits
+                return false;
+            }
+        } else {
+            write = target.getConnection().tryWriteAsync(target, () -> batch.encode(encoder, sort), reliable); // not encoded unless it can be sent
+            if (write == null) {
+                return false;
+            }
+        }
+        String lines = batch.encode(encoder, sort);
+        List<EnrichedValue> written = deadband != null ? new ArrayList<>(batch.values) : null;
+        Batch.Acks acks = batch.reset();
+        write.whenComplete((result, ex) -> {
+            if (ex == null) {
+                counters.out(count);
+                if (spill != null) {
+                    spill.writeCompleted(target, System.nanoTime() - start);
+                }
+                acknowledge(acks);
+                return;
+            }
+            if (spill != null) {
+                spill.writeFailed(target);
+                if (spill.append(target, lines, count)) {
+                    LOG.debug("Spilled " + count + " values after a failed write to " + target, ex);
+                    counters.out(count);
+                    acknowledge(acks);
+                    return;
+                }
+            }
+            counters.failed(count);
+            boolean retryable = ex instanceof InfluxDBWriteException && ((InfluxDBWriteException) ex).isRetryable();
+            if (retryWrites && retryable) {
+                LOG.error("Failed to write or spill " + count + " values to " + target + ", retrying until they are written", ex);
+                rewrites.add(new Rewrite(target, lines, count, acks, written));
+                return;
+            }
+            LOG.error("Unexpected error while writing data to " + target + ", " + count + " values will be lost!", ex);
+            forget(written);
+            acknowledge(acks);
+        });
+        return true;
+    }
+
+    /**
+     * Write the batches handed back after a failed write again, retrying until
+     * they are written
+     */
+    private void rewrite() throws InterruptedException {
+        Rewrite rewrite;
+        while ((rewrite = rewrites.peek()) != null) {
+            Target target = rewrite.target;
+            int count = rewrite.count;
+            Batch.Acks acks = rewrite.acks;
+            List<EnrichedValue> written = rewrite.values;
+            CompletableFuture<Void> write = target.getConnection().writeAsync(target, rewrite.lines, true);
+            rewrites.remove();
+            write.whenComplete((result, ex) -> {
+                if (ex == null) {
+                    counters.out(count);
+                } else {
+                    LOG.error("Unexpected error while writing data to " + target + ", " + count + " values will be lost!", ex);
+                    forget(written);
+                }
+                acknowledge(acks);
+            });
+        }
+    }
+
+    /**
+     * Let the deadband filter write the next values of the items in a lost
+     * batch instead of suppressing them until the heartbeat
+     *
+     * @param values the values of the batch, or null without a deadband filter
+     */
+    private void forget(List<EnrichedValue> values) {
+        if (values != null) {
+            for (EnrichedValue v : values) {
+                deadband.forget(v);
+            }
+        }
+    }
+
+    private static void acknowledge(Batch.Acks acks) {
+        for (int i = 0; i < acks.acks.length; i++) {
+            acks.acks[i].done(acks.counts[i]);
+        }
+    }
+
+    /**
+     * A failed batch to write again
+     */
+    private static class Rewrite {
+
+        final Target target;
+        final String lines;
+        final int count;
+        final Batch.Acks acks;
+        final List<EnrichedValue> values;
+
+        Rewrite(Target target, String lines, int count, Batch.Acks acks, List<EnrichedValue> values) {
+            this.target = target;
+            this.lines = lines;
+            this.count = count;
+            this.acks = acks;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Values buffered for one target
+     */
+    private static class Batch {
+
+        final Target target;
+        final StringBuilder buffer;
+        final List<EnrichedValue> values = new ArrayList<>();
+        final List<BatchAck> acks = new ArrayList<>();
+        final List<Integer> ackCounts = new ArrayList<>();
+        int lines;
+        int flushAt;
+        long started;
+        String encoded;
+
+        Batch(Target target, int capacity) {
+            this.target = target;
+            this.buffer = new StringBuilder(capacity);
+        }
+
+        void add(EnrichedValue value) {
+            values.add(value);
+            track(value.ack);
+            lines++;
+            encoded = null;
+        }
+
+        /**
+         * @param encoder
+         * @param sort if true, the values are sorted by series and time
+         * @return the buffered values as line protocol
+         */
+        String encode(InfluxDBConnection encoder, boolean sort) {
+            if (encoded == null) {
+                if (sort) {
+                    values.sort(EnrichedValue.SERIES_ORDER);
+                }
+                buffer.setLength(0);
+                for (EnrichedValue v : values) {
+                    encoder.append(buffer, v.host, v.item, v.timestamp, v.value);
+                }
+                encoded = buffer.toString();
+            }
+            return encoded;
+        }
+
+        /**
+         * Remember the acknowledgement of a buffered value. Consecutive values
+         * usually come from the same source batch, so they are counted
+         * together.
+         */
+        private void track(BatchAck ack) {
+            int last = acks.size() - 1;
+            if (last >= 0 && acks.get(last) == ack) {
+                ackCounts.set(last, ackCounts.get(last) + 1);
+            } else {
+                acks.add(ack);
+                ackCounts.add(1);
+            }
+        }
+
+        /**
+         * Empty the batch for reuse
+         *
+         * @return the acknowledgements of the lines that were buffered
+         */
+        Acks reset() {
+            Acks result = new Acks(acks.toArray(new BatchAck[0]), ackCounts.stream().mapToInt(Integer::intValue).toArray());
+            buffer.setLength(0);
+            values.clear();
+            encoded = null;
+            lines = 0;
+            acks.clear();
+            ackCounts.clear();
+            return result;
+        }
+
+        static class Acks {
+
+            final BatchAck[] acks;
+            final int[] counts;
+
+            Acks(BatchAck[] acks, int[] counts) {
+                this.acks = acks;
+                this.counts = counts;
+            }
+        }
+    }
+}
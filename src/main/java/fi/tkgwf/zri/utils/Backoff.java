@@ -0,0 +1,50 @@
+package fi.tkgwf.zri.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter. Each delay is twice the previous one up to
+ * the maximum, randomized to between half and the full nominal delay so that
+ * clients failing at the same time don't retry at the same time.
+ *
+ * Not thread safe.
+ */
+public class Backoff {
+
+    private final long minMs;
+    private final long maxMs;
+    private long currentMs;
+
+    /**
+     * @param minMs nominal delay after the first failure
+     * @param maxMs max nominal delay
+     */
+    public Backoff(long minMs, long maxMs) {
+        this.minMs = Math.max(1, minMs);
+        this.maxMs = Math.max(this.minMs, maxMs);
+    }
+
+    /**
+     * @return the delay to wait before the next attempt
+     */
+    public long next() {
+        currentMs = currentMs == 0 ? minMs : Math.min(maxMs, currentMs * 2);
+        return currentMs / 2 + ThreadLocalRandom.current().nextLong(currentMs / 2 + 1);
+    }
+
+    /**
+     * Waits for the next delay
+     *
+     * @throws InterruptedException
+     */
+    public void sleep() throws InterruptedException {
+        Thread.sleep(next());
+    }
+
+    /**
+     * Start over from the min delay, called after a successful attempt
+     */
+    public void reset() {
+        currentMs = 0;
+    }
+}
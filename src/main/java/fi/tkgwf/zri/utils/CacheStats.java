@@ -0,0 +1,19 @@
+package fi.tkgwf.zri.utils;
+
+/**
+ * Counters shared by the cache implementations, for the cache metrics
+ */
+public interface CacheStats {
+
+    int size();
+
+    long getHits();
+
+    long getNegativeHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getExpirations();
+}
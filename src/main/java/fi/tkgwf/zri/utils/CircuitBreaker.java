@@ -0,0 +1,107 @@
+package fi.tkgwf.zri.utils;
+
+import fi.tkgwf.zri.config.Config;
+import fi.tkgwf.zri.metrics.Counter;
+import fi.tkgwf.zri.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Circuit breaker for a remote dependency. After a number of consecutive
+ * failures the circuit opens and requests are rejected without contacting the
+ * dependency. Once the open period is over a single probe request is let
+ * through: if it succeeds the circuit closes, otherwise it opens again for a
+ * longer period.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final Backoff backoff;
+    private final Counter rejected;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openUntil;
+
+    /**
+     * Creates a breaker configured with the circuit.* and retry.backoff.*
+     * settings
+     *
+     * @param name name of the dependency
+     */
+    public CircuitBreaker(String name) {
+        this(name, Config.getInt("circuit.failures", 5), Config.getInt("retry.backoff.min", 100), Config.getInt("retry.backoff.max", 30000));
+    }
+
+    /**
+     * @param name name of the dependency
+     * @param failureThreshold consecutive failures after which the circuit
+     * opens
+     * @param minOpenMs nominal open period after the circuit first opens
+     * @param maxOpenMs max nominal open period
+     */
+    public CircuitBreaker(String name, int failureThreshold, long minOpenMs, long maxOpenMs) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.backoff = new Backoff(minOpenMs, maxOpenMs);
+        this.rejected = Metrics.counter("zri_circuit_rejected_total", "Requests rejected because the circuit of the dependency was open", "dependency", name);
+        Metrics.gauge("zri_circuit_open", "1 if requests to the dependency are currently rejected", () -> isClosed() ? 0 : 1, "dependency", name);
+    }
+
+    /**
+     * Check whether a request may be made. Every allowed request must be
+     * followed by a call to {@link #success()} or {@link #failure()}.
+     *
+     * @return false if the circuit is open and the request should fail fast
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() >= openUntil) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                break;
+            default:
+                break; // a probe is already in flight
+        }
+        rejected.inc();
+        return false;
+    }
+
+    public synchronized void success() {
+        if (state != State.CLOSED) {
+            LOG.info("Circuit for " + name + " closed");
+        }
+        state = State.CLOSED;
+        failures = 0;
+        backoff.reset();
+    }
+
+    public synchronized void failure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            long openMs = backoff.next();
+            if (state == State.CLOSED) {
+                LOG.warn("Circuit for " + name + " opened after " + failures + " consecutive failures");
+            }
+            state = State.OPEN;
+            openUntil = System.currentTimeMillis() + openMs;
+        }
+    }
+
+    /**
+     * @return true if requests are currently let through normally
+     */
+    public synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+}
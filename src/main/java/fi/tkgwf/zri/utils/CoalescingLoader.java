@@ -0,0 +1,145 @@
+package fi.tkgwf.zri.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Collects individual key lookups over a short window and resolves them with a
+ * single bulk load. Concurrent requests for the same key share one future, so
+ * each key is loaded at most once at a time. Bulk loads are asynchronous, a
+ * single thread collects the keys and starts up to a limited number of loads
+ * at once.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class CoalescingLoader<K, V> {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final long FAILURE_BACKOFF_MIN_MS = 1000;
+    private static final long FAILURE_BACKOFF_MAX_MS = 30000;
+
+    private final String name;
+    private final BulkLoader<K, V> loader;
+    private final long windowMs;
+    private final int maxBatchSize;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> pending = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<K> queue = new LinkedBlockingQueue<>();
+    private final Semaphore inFlight;
+    private final Backoff backoff = new Backoff(FAILURE_BACKOFF_MIN_MS, FAILURE_BACKOFF_MAX_MS); // guarded by itself
+    private volatile long retryAt;
+
+    /**
+     * @param name used for naming the loader thread
+     * @param loader
+     * @param windowMs max time to wait for more keys after the first one
+     * @param maxBatchSize max number of keys per bulk load
+     * @param maxInFlight number of bulk loads that may be in flight at once
+     */
+    public CoalescingLoader(String name, BulkLoader<K, V> loader, long windowMs, int maxBatchSize, int maxInFlight) {
+        this.name = name;
+        this.loader = loader;
+        this.windowMs = windowMs;
+        this.maxBatchSize = maxBatchSize;
+        this.inFlight = new Semaphore(maxInFlight);
+        Thread t = new Thread(this::run, name + "-loader");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Requests a key to be loaded
+     *
+     * @param key
+     * @return a future completed with the loaded value, or null if the key
+     * does not exist
+     */
+    public CompletableFuture<V> get(K key) {
+        CompletableFuture<V> future = pending.get(key);
+        if (future != null) {
+            return future;
+        }
+        CompletableFuture<V> created = new CompletableFuture<>();
+        future = pending.putIfAbsent(key, created);
+        if (future != null) {
+            return future;
+        }
+        queue.add(key);
+        return created;
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                List<K> batch = new ArrayList<>(Math.min(maxBatchSize, 1024));
+                batch.add(queue.take());
+                long wait = retryAt - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait); // possibly lost connection or so, wait for a bit
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+                while (batch.size() < maxBatchSize) {
+                    K key = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (key == null) {
+                        break;
+                    }
+                    batch.add(key);
+                }
+                inFlight.acquire();
+                queue.drainTo(batch, maxBatchSize - batch.size()); // keys that arrived while all loads were busy
+                load(batch);
+            } catch (InterruptedException ex) {
+                LOG.info("Interrupted. Exiting...", ex);
+                return;
+            }
+        }
+    }
+
+    private void load(List<K> batch) {
+        CompletableFuture<Map<K, V>> load;
+        try {
+            load = loader.load(batch);
+        } catch (RuntimeException ex) {
+            load = new CompletableFuture<>();
+            load.completeExceptionally(ex);
+        }
+        load.whenComplete((result, ex) -> {
+            inFlight.release();
+            if (ex != null) {
+                LOG.error("Failed to load " + batch.size() + " keys for " + name, ex);
+                synchronized (backoff) {
+                    retryAt = System.currentTimeMillis() + backoff.next();
+                }
+                batch.forEach(key -> pending.remove(key).completeExceptionally(ex));
+                return;
+            }
+            synchronized (backoff) {
+                backoff.reset();
+            }
+            batch.forEach(key -> pending.remove(key).complete(result.get(key)));
+        });
+    }
+
+    public interface BulkLoader<K, V> {
+
+        /**
+         * Start loading the given keys. The implementation should also store
+         * the results wherever the callers look them up before calling
+         * {@link CoalescingLoader#get}.
+         *
+         * @param keys
+         * @return a future completed with the loaded values, missing keys are
+         * treated as nonexistent
+         */
+        CompletableFuture<Map<K, V>> load(List<K> keys);
+    }
+}
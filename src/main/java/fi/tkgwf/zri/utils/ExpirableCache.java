@@ -0,0 +1,348 @@
+package fi.tkgwf.zri.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Concurrent, size bounded cache with per-entry expiry.
+ *
+ * The cache is split into independently locked segments. Each segment keeps
+ * its entries in access order and evicts the least recently used entry when it
+ * is full. Expired entries are removed with a hashed timing wheel, so expiry
+ * costs amortized O(1) per entry instead of periodic full scans.
+ *
+ * Null values are stored as negative entries, meaning "known not to exist".
+ * Entries become due for a refresh some time before they expire, see
+ * {@link CachedValue#claimRefresh()}, and their lifetimes are jittered so that
+ * entries stored at the same time don't all expire at the same time.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ExpirableCache<K, V> implements CacheStats {
+
+    private static final int SEGMENTS = 16;
+    private static final long TICK_MS = 1000;
+    private static final int WHEEL_SIZE = 1024; // must be a power of two
+    private static final double REFRESH_AHEAD_RATIO = 0.8;
+
+    private final Segment<K, V>[] segments;
+    private final double jitter;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param maxSize max number of entries, including negative entries
+     * @param jitter fraction by which each entry lifetime is randomly
+     * shortened or extended, for example 0.1 for +-10%
+     */
+    @SuppressWarnings("unchecked") // the array only ever holds Segment<K, V>
+    public ExpirableCache(int maxSize, double jitter) {
+        this.jitter = jitter;
+        segments = (Segment<K, V>[]) new Segment<?, ?>[SEGMENTS];
+        int segmentSize = Math.max(1, maxSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>(segmentSize, evictions, expirations);
+        }
+    }
+
+    /**
+     * Get the cached entry for a key
+     *
+     * @param key
+     * @return the entry, or null if the key is not cached or has expired. The
+     * value of a negative entry is null.
+     */
+    public CachedValue<V> get(K key) {
+        long now = System.currentTimeMillis();
+        Segment<K, V> segment = segmentFor(key);
+        Node<K, V> node;
+        synchronized (segment) {
+            segment.advance(now);
+            node = segment.map.get(key);
+            if (node != null && node.expiresAt <= now) {
+                segment.remove(node);
+                expirations.increment();
+                node = null;
+            }
+        }
+        if (node == null) {
+            misses.increment();
+        } else if (node.value == null) {
+            negativeHits.increment();
+        } else {
+            hits.increment();
+        }
+        return node;
+    }
+
+    /**
+     * Get the cached entry for a key without counting it as a hit or a miss
+     *
+     * @param key
+     * @return the entry, or null if the key is not cached or has expired
+     */
+    public CachedValue<V> peek(K key) {
+        long now = System.currentTimeMillis();
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Node<K, V> node = segment.map.get(key);
+            return node != null && node.expiresAt > now ? node : null;
+        }
+    }
+
+    /**
+     * Store a value
+     *
+     * @param key
+     * @param value the value, or null to store a negative entry
+     * @param ttlMs nominal lifetime of the entry, subject to jitter
+     */
+    public void put(K key, V value, long ttlMs) {
+        put(key, value, ttlMs, -1);
+    }
+
+    /**
+     * Store a value that becomes due for a refresh at the given time rather
+     * than shortly before it expires, for example a value that may be stale
+     *
+     * @param key
+     * @param value the value, or null to store a negative entry
+     * @param ttlMs nominal lifetime of the entry, subject to jitter
+     * @param refreshInMs time until the entry is due for a refresh, or
+     * negative for the default
+     */
+    public void put(K key, V value, long ttlMs, long refreshInMs) {
+        long now = System.currentTimeMillis();
+        long ttl = jitter > 0 ? (long) (ttlMs * (1 - jitter + 2 * jitter * ThreadLocalRandom.current().nextDouble())) : ttlMs;
+        long refreshAt = refreshInMs < 0 ? now + (long) (ttl * REFRESH_AHEAD_RATIO) : now + refreshInMs;
+        Node<K, V> node = new Node<>(key, value, now + ttl, refreshAt);
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.advance(now);
+            Node<K, V> old = segment.map.put(key, node);
+            if (old != null) {
+                old.removed = true;
+            }
+            segment.schedule(node);
+        }
+    }
+
+    public void remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Node<K, V> node = segment.map.get(key);
+            if (node != null) {
+                segment.remove(node);
+            }
+        }
+    }
+
+    /**
+     * Calls the consumer for each unexpired entry, including negative entries
+     * with a null value. The entries of each segment are copied while it is
+     * locked, and the consumer is called after the lock has been released, so
+     * a slow consumer doesn't hold up lookups.
+     *
+     * @param consumer
+     */
+    public void forEach(BiConsumer<K, CachedValue<V>> consumer) {
+        long now = System.currentTimeMillis();
+        List<Node<K, V>> nodes = new ArrayList<>();
+        for (Segment<K, V> segment : segments) {
+            nodes.clear();
+            synchronized (segment) {
+                for (Node<K, V> node : segment.map.values()) {
+                    if (node.expiresAt > now) {
+                        nodes.add(node);
+                    }
+                }
+            }
+            for (Node<K, V> node : nodes) {
+                consumer.accept(node.key, node);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    /**
+     * A cached value along with its expiry information
+     *
+     * @param <V>
+     */
+    public interface CachedValue<V> {
+
+        /**
+         * @return the value, or null for a negative entry
+         */
+        V getValue();
+
+        long getExpiresAt();
+
+        /**
+         * Check whether the entry is due for a refresh. Returns true at most
+         * once per entry, so that only one caller triggers the refresh.
+         *
+         * @return true if the caller should refresh the entry
+         */
+        boolean claimRefresh();
+    }
+
+    private static class Node<K, V> implements CachedValue<V> {
+
+        final K key;
+        final V value;
+        final long expiresAt;
+        final long refreshAt;
+        volatile boolean refreshClaimed;
+        boolean removed; // guarded by the segment lock
+
+        Node(K key, V value, long expiresAt, long refreshAt) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        @Override
+        public boolean claimRefresh() {
+            if (refreshClaimed || System.currentTimeMillis() < refreshAt) {
+                return false;
+            }
+            synchronized (this) {
+                if (refreshClaimed) {
+                    return false;
+                }
+                refreshClaimed = true;
+                return true;
+            }
+        }
+    }
+
+    private static class Segment<K, V> {
+
+        final LinkedHashMap<K, Node<K, V>> map;
+        final ArrayDeque<Node<K, V>>[] wheel;
+        final LongAdder expirations;
+        long currentTick;
+
+        @SuppressWarnings("unchecked") // the wheel only ever holds ArrayDeque<Node<K, V>>
+        Segment(int maxSize, LongAdder evictions, LongAdder expirations) {
+            this.expirations = expirations;
+            map = new LinkedHashMap<K, Node<K, V>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Node<K, V>> eldest) {
+                    if (size() > maxSize) {
+                        eldest.getValue().removed = true;
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+            wheel = (ArrayDeque<Node<K, V>>[]) new ArrayDeque<?>[WHEEL_SIZE];
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel[i] = new ArrayDeque<>();
+            }
+            currentTick = System.currentTimeMillis() / TICK_MS;
+        }
+
+        void schedule(Node<K, V> node) {
+            long tick = Math.max(node.expiresAt / TICK_MS, currentTick + 1);
+            wheel[(int) (tick & (WHEEL_SIZE - 1))].add(node);
+        }
+
+        void remove(Node<K, V> node) {
+            map.remove(node.key);
+            node.removed = true;
+        }
+
+        /**
+         * Expire the entries in the buckets between the previous and the
+         * current tick. Entries in a bucket that belong to a later rotation of
+         * the wheel are kept.
+         */
+        void advance(long now) {
+            long nowTick = now / TICK_MS;
+            long steps = Math.min(nowTick - currentTick, WHEEL_SIZE);
+            for (long i = 0; i < steps; i++) {
+                ArrayDeque<Node<K, V>> bucket = wheel[(int) ((currentTick + 1 + i) & (WHEEL_SIZE - 1))];
+                for (int n = bucket.size(); n > 0; n--) {
+                    Node<K, V> node = bucket.poll();
+                    if (node.removed) {
+                        continue;
+                    }
+                    if (node.expiresAt <= now) {
+                        remove(node);
+                        expirations.increment();
+                    } else {
+                        bucket.add(node);
+                    }
+                }
+            }
+            if (nowTick > currentTick) {
+                currentTick = nowTick;
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package fi.tkgwf.zri.utils;
+
+import fi.tkgwf.zri.bean.zabbix.Host;
+import fi.tkgwf.zri.bean.zabbix.Item;
+
+/**
+ * InfluxDB line protocol encoding.
+ *
+ * The measurement and tag set of a series only change when the item or host
+ * metadata changes, so they are encoded once and cached on the item. Writing a
+ * value is then only a matter of appending the value and the timestamp.
+ */
+public abstract class LineProtocol {
+
+    private static final String VALUE_FIELD = " value=";
+
+    /**
+     * Append a line for a single value
+     *
+     * @param buffer
+     * @param host
+     * @param item
+     * @param timestamp in nanoseconds
+     * @param value
+     */
+    public static void append(StringBuilder buffer, Host host, Item item, long timestamp, double value) {
+        buffer.append(seriesPrefix(host, item)).append(value).append(' ').append(timestamp).append('\n');
+    }
+
+    /**
+     * Append a line summarizing the values of a series over a time window
+     *
+     * @param buffer
+     * @param host
+     * @param item
+     * @param measurementSuffix appended to the measurement name, or null
+     * @param timestamp start of the window in nanoseconds
+     * @param min
+     * @param max
+     * @param sum
+     * @param count
+     * @param last
+     */
+    public static void appendSummary(StringBuilder buffer, Host host, Item item, String measurementSuffix, long timestamp,
+            double min, double max, double sum, long count, double last) {
+        String prefix = seriesPrefix(host, item);
+        int fieldStart = prefix.length() - VALUE_FIELD.length();
+        if (measurementSuffix == null) {
+            buffer.append(prefix, 0, fieldStart);
+        } else {
+            int start = buffer.length();
+            escape(buffer, measurement(item));
+            int tagsStart = buffer.length() - start;
+            escape(buffer, measurementSuffix);
+            buffer.append(prefix, tagsStart, fieldStart);
+        }
+        buffer.append(" min=").append(min).append(",max=").append(max).append(",mean=").append(sum / count)
+                .append(",count=").append(count).append("i,last=").append(last).append(' ').append(timestamp).append('\n');
+    }
+
+    /**
+     * Get the encoded measurement, tag set and field name of a series, up to
+     * the field value. Cached on the item for as long as it is used with the
+     * same host instance.
+     *
+     * @param host
+     * @param item
+     * @return the encoded prefix
+     */
+    public static String seriesPrefix(Host host, Item item) {
+        SeriesPrefix prefix = item.seriesPrefix;
+        if (prefix == null || prefix.host != host) {
+            prefix = new SeriesPrefix(host, encodeSeriesPrefix(host, item));
+            item.seriesPrefix = prefix;
+        }
+        return prefix.value;
+    }
+
+    /**
+     * @param item
+     * @return the unescaped measurement name of the item, its key up to the
+     * parameters
+     */
+    public static String measurement(Item item) {
+        int bracket = item.key_.indexOf('[');
+        return bracket < 0 ? item.key_ : item.key_.substring(0, bracket);
+    }
+
+    private static String encodeSeriesPrefix(Host host, Item item) {
+        StringBuilder sb = new StringBuilder(128);
+        escape(sb, measurement(item));
+        // tags in lexicographic key order, as recommended for best write performance
+        tag(sb, "host", host.host);
+        tag(sb, "hostid", host.hostid);
+        tag(sb, "item", item.name);
+        tag(sb, "itemid", item.itemid);
+        tag(sb, "key", item.key_);
+        return sb.append(VALUE_FIELD).toString();
+    }
+
+    private static void tag(StringBuilder sb, String key, long value) {
+        sb.append(',').append(key).append('=').append(value);
+    }
+
+    private static void tag(StringBuilder sb, String key, String value) {
+        if (value == null || value.isEmpty()) {
+            return; // empty tag values are not allowed
+        }
+        sb.append(',').append(key).append('=');
+        escape(sb, value);
+    }
+
+    private static void escape(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ' ' || c == ',' || c == '=') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+    }
+
+    public static class SeriesPrefix {
+
+        private final Host host;
+        private final String value;
+
+        private SeriesPrefix(Host host, String value) {
+            this.host = host;
+            this.value = value;
+        }
+    }
+}
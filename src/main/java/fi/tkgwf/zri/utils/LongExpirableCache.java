@@ -0,0 +1,460 @@
+package fi.tkgwf.zri.utils;
+
+import fi.tkgwf.zri.utils.ExpirableCache.CachedValue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * Size bounded cache with per-entry expiry for primitive long keys, a compact
+ * counterpart of {@link ExpirableCache} for caches with millions of entries.
+ *
+ * Each segment is an open addressing table of parallel arrays, so an entry
+ * costs its slots in a few primitive arrays and a reference to the value
+ * instead of a key object, a map entry and an expiry node. Expiry times are
+ * kept in seconds. When a segment is full, an entry is evicted with the clock
+ * algorithm, which approximates least recently used eviction without linking
+ * the entries together. Expired entries are removed when they are looked up,
+ * reached by the eviction clock or swept a few at a time on each put.
+ *
+ * Null values are stored as negative entries, meaning "known not to exist",
+ * and entries become due for a refresh before they expire like in
+ * {@link ExpirableCache}.
+ *
+ * @param <V> value type
+ */
+public class LongExpirableCache<V> implements CacheStats {
+
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int SWEEP_PER_PUT = 4;
+    private static final double REFRESH_AHEAD_RATIO = 0.8;
+    private static final Object NEGATIVE = new Object();
+    private static final int REFRESH_CLAIMED = Integer.MAX_VALUE;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final double jitter;
+    private final long baseMs = System.currentTimeMillis() - 1000; // expiry times are seconds since this
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param maxSize max number of entries, including negative entries
+     * @param jitter fraction by which each entry lifetime is randomly
+     * shortened or extended, for example 0.1 for +-10%
+     */
+    public LongExpirableCache(int maxSize, double jitter) {
+        this.jitter = jitter;
+        int segmentSize = Math.max(1, maxSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize, evictions, expirations);
+        }
+    }
+
+    /**
+     * Get the cached value for a key without allocating anything. If the entry
+     * is due for a refresh, the refresh is claimed for the caller and passed to
+     * the refresh consumer, only once per entry.
+     *
+     * @param key
+     * @param missing returned if the key is not cached or has expired
+     * @param refresh called with the key if the entry should be refreshed
+     * @return the value, null for a negative entry or missing
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key, V missing, LongConsumer refresh) {
+        long hash = hash(key);
+        Object value = segmentFor(hash).get(key, hash, seconds(System.currentTimeMillis()));
+        if (value == null) {
+            misses.increment();
+            return missing;
+        }
+        if (value instanceof RefreshClaim) {
+            value = ((RefreshClaim) value).value;
+            refresh.accept(key);
+        }
+        if (value == NEGATIVE) {
+            negativeHits.increment();
+            return null;
+        }
+        hits.increment();
+        return (V) value;
+    }
+
+    /**
+     * Get the cached entry for a key without counting it as a hit or a miss
+     *
+     * @param key
+     * @return the entry, or null if the key is not cached or has expired
+     */
+    public CachedValue<V> peek(long key) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int i = segment.lookup(key, hash, seconds(System.currentTimeMillis()));
+            return i < 0 ? null : entry(segment.values[i], segment.expires[i], false);
+        }
+    }
+
+    /**
+     * Store a value
+     *
+     * @param key
+     * @param value the value, or null to store a negative entry
+     * @param ttlMs nominal lifetime of the entry, subject to jitter
+     */
+    public void put(long key, V value, long ttlMs) {
+        put(key, value, ttlMs, -1);
+    }
+
+    /**
+     * Store a value that becomes due for a refresh at the given time rather
+     * than shortly before it expires, for example a value that may be stale
+     *
+     * @param key
+     * @param value the value, or null to store a negative entry
+     * @param ttlMs nominal lifetime of the entry, subject to jitter
+     * @param refreshInMs time until the entry is due for a refresh, or
+     * negative for the default
+     */
+    public void put(long key, V value, long ttlMs, long refreshInMs) {
+        long now = System.currentTimeMillis();
+        long ttl = jitter > 0 ? (long) (ttlMs * (1 - jitter + 2 * jitter * ThreadLocalRandom.current().nextDouble())) : ttlMs;
+        long refreshAt = refreshInMs < 0 ? now + (long) (ttl * REFRESH_AHEAD_RATIO) : now + refreshInMs;
+        long hash = hash(key);
+        segmentFor(hash).put(key, hash, value == null ? NEGATIVE : value, seconds(now + ttl), seconds(refreshAt), seconds(now));
+    }
+
+    public void remove(long key) {
+        long hash = hash(key);
+        segmentFor(hash).remove(key, hash);
+    }
+
+    /**
+     * Calls the consumer for each unexpired entry, including negative entries
+     * with a null value. The entries of each segment are copied while it is
+     * locked, and the consumer is called after the lock has been released, so
+     * a slow consumer doesn't hold up lookups.
+     *
+     * @param consumer
+     */
+    public void forEach(EntryConsumer<V> consumer) {
+        int now = seconds(System.currentTimeMillis());
+        for (Segment segment : segments) {
+            long[] keys;
+            Object[] values;
+            int[] expires;
+            int count = 0;
+            synchronized (segment) {
+                keys = new long[segment.size];
+                values = new Object[segment.size];
+                expires = new int[segment.size];
+                for (int i = 0; i < segment.values.length; i++) {
+                    if (segment.values[i] != null && segment.expires[i] > now) {
+                        keys[count] = segment.keys[i];
+                        values[count] = segment.values[i];
+                        expires[count] = segment.expires[i];
+                        count++;
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                consumer.accept(keys[i], entry(values[i], expires[i], false));
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    private int seconds(long timeMs) {
+        return (int) Math.min(Integer.MAX_VALUE - 1, Math.max(0, (timeMs - baseMs) / 1000));
+    }
+
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        return key ^ key >>> 33;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+    }
+
+    @SuppressWarnings("unchecked")
+    private Entry<V> entry(Object value, int expires, boolean refresh) {
+        return new Entry<>(value == NEGATIVE ? null : (V) value, baseMs + expires * 1000L, refresh);
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+
+        void accept(long key, CachedValue<V> value);
+    }
+
+    /**
+     * Value of an entry whose refresh was claimed by a lookup
+     */
+    private static class RefreshClaim {
+
+        final Object value;
+
+        RefreshClaim(Object value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * A copy of an entry taken when it was looked up
+     */
+    private static class Entry<V> implements CachedValue<V> {
+
+        final V value;
+        final long expiresAt;
+        boolean refresh;
+
+        Entry(V value, long expiresAt, boolean refresh) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.refresh = refresh;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        @Override
+        public boolean claimRefresh() {
+            boolean claimed = refresh;
+            refresh = false;
+            return claimed;
+        }
+    }
+
+    private static class Segment {
+
+        final int maxSize;
+        final LongAdder evictions;
+        final LongAdder expirations;
+        long[] keys = new long[INITIAL_CAPACITY];
+        Object[] values = new Object[INITIAL_CAPACITY]; // null for empty slots
+        int[] expires = new int[INITIAL_CAPACITY];
+        int[] refreshes = new int[INITIAL_CAPACITY];
+        boolean[] referenced = new boolean[INITIAL_CAPACITY];
+        int size;
+        int clockHand;
+        int sweepHand;
+
+        Segment(int maxSize, LongAdder evictions, LongAdder expirations) {
+            this.maxSize = maxSize;
+            this.evictions = evictions;
+            this.expirations = expirations;
+        }
+
+        /**
+         * @return the stored value, wrapped in a {@link RefreshClaim} if the
+         * entry is due for a refresh, or null if there is no unexpired entry
+         */
+        synchronized Object get(long key, long hash, int now) {
+            int i = lookup(key, hash, now);
+            if (i < 0) {
+                return null;
+            }
+            if (refreshes[i] <= now) {
+                refreshes[i] = REFRESH_CLAIMED;
+                return new RefreshClaim(values[i]); // once per entry
+            }
+            return values[i];
+        }
+
+        /**
+         * Must be called holding the segment lock
+         *
+         * @return slot of the unexpired entry for the key, or -1
+         */
+        int lookup(long key, long hash, int now) {
+            int i = find(key, hash);
+            if (values[i] == null) {
+                return -1;
+            }
+            if (expires[i] <= now) {
+                delete(i);
+                expirations.increment();
+                return -1;
+            }
+            referenced[i] = true;
+            return i;
+        }
+
+        synchronized void put(long key, long hash, Object value, int expiresAt, int refreshAt, int now) {
+            sweep(now);
+            int i = find(key, hash);
+            if (values[i] == null) {
+                if (size >= maxSize) {
+                    evict(now);
+                }
+                if ((size + 1) * 4 > keys.length * 3) {
+                    grow();
+                }
+                i = find(key, hash);
+                size++;
+            }
+            keys[i] = key;
+            values[i] = value;
+            expires[i] = expiresAt;
+            refreshes[i] = refreshAt;
+            referenced[i] = false;
+        }
+
+        synchronized void remove(long key, long hash) {
+            int i = find(key, hash);
+            if (values[i] != null) {
+                delete(i);
+            }
+        }
+
+        private int find(long key, long hash) {
+            int mask = keys.length - 1;
+            int i = (int) hash & mask;
+            while (values[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        /**
+         * Removes the entry in a slot and moves the following entries of the
+         * same probe sequence back, so that lookups don't need tombstones
+         */
+        private void delete(int i) {
+            int mask = keys.length - 1;
+            int gap = i;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (values[j] == null) {
+                    break;
+                }
+                int home = (int) hash(keys[j]) & mask;
+                if ((j - home & mask) >= (j - gap & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    expires[gap] = expires[j];
+                    refreshes[gap] = refreshes[j];
+                    referenced[gap] = referenced[j];
+                    gap = j;
+                }
+            }
+            values[gap] = null;
+            size--;
+        }
+
+        /**
+         * Removes one entry, preferring expired ones and then the ones that
+         * haven't been looked up since the clock hand last passed them
+         */
+        private void evict(int now) {
+            int mask = keys.length - 1;
+            while (true) {
+                int i = clockHand;
+                if (values[i] != null) {
+                    if (expires[i] <= now) {
+                        delete(i);
+                        expirations.increment();
+                        return; // an entry may have moved into this slot, look at it again next time
+                    }
+                    if (!referenced[i]) {
+                        delete(i);
+                        evictions.increment();
+                        return;
+                    }
+                    referenced[i] = false;
+                }
+                clockHand = (i + 1) & mask;
+            }
+        }
+
+        private void sweep(int now) {
+            int mask = keys.length - 1;
+            for (int n = 0; n < SWEEP_PER_PUT; n++) {
+                int i = sweepHand;
+                if (values[i] != null && expires[i] <= now) {
+                    delete(i);
+                    expirations.increment();
+                } else {
+                    sweepHand = (i + 1) & mask;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            int[] oldExpires = expires;
+            int[] oldRefreshes = refreshes;
+            boolean[] oldReferenced = referenced;
+            int capacity = keys.length * 2;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            expires = new int[capacity];
+            refreshes = new int[capacity];
+            referenced = new boolean[capacity];
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = find(oldKeys[j], hash(oldKeys[j]));
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                    expires[i] = oldExpires[j];
+                    refreshes[i] = oldRefreshes[j];
+                    referenced[i] = oldReferenced[j];
+                }
+            }
+            clockHand &= capacity - 1;
+            sweepHand &= capacity - 1;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package fi.tkgwf.zri.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Deduplicates strings that repeat over many objects, such as the keys and
+ * names of items created from the same template on every host.
+ *
+ * The pool is split into independently locked segments, each keeping its
+ * strings in access order and evicting the least recently used one when it is
+ * full, so strings of items that have been deleted make room for new ones.
+ */
+public class StringPool {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * @param maxSize max number of distinct strings to keep
+     */
+    public StringPool(int maxSize) {
+        int segmentSize = Math.max(1, maxSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * @param s
+     * @return an equal string from the pool, or s itself after adding it
+     */
+    public String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        int h = s.hashCode();
+        Segment segment = segments[(h ^ h >>> 16) & (SEGMENTS - 1)];
+        synchronized (segment) {
+            String pooled = segment.putIfAbsent(s, s);
+            return pooled == null ? s : pooled;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private static class Segment extends LinkedHashMap<String, String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > maxSize;
+        }
+    }
+}